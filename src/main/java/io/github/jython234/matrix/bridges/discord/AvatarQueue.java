@@ -0,0 +1,107 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import net.dv8tion.jda.core.entities.User;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Sets the Matrix avatars of Discord users in the background, so avatar changes
+ * never hold up syncing or bridging messages.
+ *
+ * Avatars are set by a fixed amount of worker threads. If a user changes their avatar again
+ * before the previous change was processed, only their latest avatar is set. The avatar ID stored in
+ * the database is only updated once the avatar was set. Users whose latest avatar hasn't been set, because it's
+ * still queued or failed, are left out of the member snapshot, so their avatar is set again on the next sync.
+ *
+ * @author jython234
+ */
+public class AvatarQueue {
+    private static final int WORKERS = 2;
+
+    private MatrixDiscordBridge bridge;
+
+    private final Map<Long, User> pending = new ConcurrentHashMap<>(); // Discord user ID -> User with the latest avatar
+    private final BlockingQueue<Long> queue = new LinkedBlockingQueue<>();
+    private final Map<Long, String> unset = new ConcurrentHashMap<>(); // Discord user ID -> Avatar ID that hasn't been set on Matrix yet
+    private final Thread[] workers = new Thread[WORKERS];
+
+    AvatarQueue(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+
+        for(int i = 0; i < WORKERS; i++) {
+            this.workers[i] = new Thread(this::workerLoop);
+            this.workers[i].setName("AvatarWorker-" + (i + 1));
+            this.workers[i].setDaemon(true);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Queues setting the Matrix avatar of a Discord user to their current Discord avatar.
+     * @param discordUser The Discord user.
+     */
+    public void submit(User discordUser) {
+        if(discordUser.getAvatarId() != null) {
+            this.unset.put(discordUser.getIdLong(), discordUser.getAvatarId());
+        } else {
+            this.unset.remove(discordUser.getIdLong());
+        }
+
+        if(this.pending.put(discordUser.getIdLong(), discordUser) == null) {
+            this.queue.add(discordUser.getIdLong()); // Not queued yet, otherwise the queued update will use this user
+        }
+    }
+
+    private void workerLoop() {
+        while(true) {
+            User discordUser;
+            try {
+                discordUser = this.pending.remove(this.queue.take());
+            } catch (InterruptedException e) {
+                return; // Interrupted, that means the bridge is stopping
+            }
+            if(discordUser == null || discordUser.getAvatarId() == null) continue;
+
+            try {
+                if(this.bridge.setMatrixAvatarFromDiscord(this.bridge.getClientManager().getClientForUser(this.bridge.getUserIdForDiscordUser(discordUser)), discordUser)) {
+                    var user = this.bridge.getDbManagement().getUser(discordUser.getId());
+                    if(user != null) this.bridge.getDbManagement().updateUserField(user, "avatar", discordUser.getAvatarId());
+                    this.unset.remove(discordUser.getIdLong(), discordUser.getAvatarId()); // Unless they changed it again in the meantime
+                }
+            } catch (IOException e) {
+                this.bridge.getLogger().warn("Failed to set avatar for Discord user: " + discordUser.getName());
+                this.bridge.getLogger().error("IOException: " + e.getMessage());
+                e.printStackTrace();
+            } catch (RuntimeException e) { // Don't let one bad avatar stop the worker
+                this.bridge.getLogger().warn("Failed to set avatar for Discord user: " + discordUser.getName());
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param discordId The Discord user ID.
+     * @return If the user's latest avatar has been set on Matrix, false if it's still queued or failed to be set.
+     */
+    public boolean isAvatarSet(long discordId) {
+        return !this.unset.containsKey(discordId);
+    }
+
+    /**
+     * @return The amount of avatars waiting to be set.
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    void shutdown() {
+        for(var worker : this.workers) {
+            worker.interrupt();
+        }
+    }
+}
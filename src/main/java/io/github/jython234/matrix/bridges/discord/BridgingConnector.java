@@ -5,10 +5,19 @@ import io.github.jython234.matrix.appservice.network.CreateRoomRequest;
 import io.github.jython234.matrix.bridge.db.Room;
 import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
 import io.github.jython234.matrix.bridge.network.room.PowerLevelsData;
+import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.Permission;
+import net.dv8tion.jda.core.entities.Member;
 import net.dv8tion.jda.core.entities.TextChannel;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class handles operations to "connect" two different
@@ -17,8 +26,16 @@ import java.io.IOException;
  * @author jython234
  */
 public class BridgingConnector {
+    private static final String MEMBERSHIP_JOB_FIELD = "membership-job";
+    private static final String JOB_JOIN = "join:";
+    private static final String JOB_UNBRIDGE = "unbridge";
+    private static final String JOB_UNBRIDGE_KICK = "unbridge-kick";
+
     private MatrixDiscordBridge bridge;
 
+    // Matrix room ID -> (User ID -> Lock), for members that haven't been joined to a newly bridged room yet
+    private final Map<String, Map<String, Object>> pendingJoins = new ConcurrentHashMap<>();
+
     BridgingConnector(MatrixDiscordBridge bridge) {
         this.bridge = bridge;
     }
@@ -34,7 +51,7 @@ public class BridgingConnector {
     public CreateRoomRequest createNewMatrixRoom(String alias, String roomId) throws IOException {
         var request = new CreateRoomRequest();
 
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getDbManagement().getRoom(roomId);
         var isPrivate = (Boolean) room.getAdditionalData().get("private");
         var discordChannel = this.bridge.jda.getTextChannelById((String) room.getAdditionalData().get("channel"));
 
@@ -90,97 +107,208 @@ public class BridgingConnector {
 
     /**
      * Handles inviting and joining all the bridged bot Discord users to the newly created
-     * Matrix room.
+     * Matrix room. The members are joined in the background, once they are all in the room
+     * the power levels are set and a message is sent to the Discord channel. Members that send
+     * a message before they were joined are joined right away, see {@link #ensureJoined(String, Member)}.
      *
      * @param dbId The ID of the room in the database.
      * @param alias The full room alias.
      * @param id The matrix room ID.
      */
     public void handleNewMatrixRoomCreated(String dbId, String alias, String id, boolean manual) throws IOException, MatrixNetworkException {
-        var room = this.bridge.getDatabase().getRoom(dbId);
-        var discordChannel = this.bridge.jda.getTextChannelById((String) room.getAdditionalData().get("channel"));
+        var discordChannel = this.bridge.jda.getTextChannelById((String) this.bridge.getDbManagement().getRoom(dbId).getAdditionalData().get("channel"));
+        var room = this.bridge.getRoomIndex().getRoomForChannel(discordChannel); // Use the indexed entry so the index stays up to date
 
         room.updateMatrixId(id); // Make sure the Matrix ID of the room is stored in the database.
-        room.updateDataField("manual", manual); // If the bridge is manually bridged or not
+        this.bridge.getDbManagement().updateRoomField(room, "manual", manual); // If the bridge is manually bridged or not
+        this.bridge.getRoomIndex().index(discordChannel.getIdLong(), room);
 
-        var powerLevels = this.getDefaultPowerLevels();
+        this.joinMembers(discordChannel, room, alias);
+    }
 
-        this.appendLevelsForMembers(powerLevels, discordChannel);
+    private void joinMembers(TextChannel discordChannel, Room room, String alias) throws MatrixNetworkException {
+        var id = room.getMatrixId();
+        this.bridge.getDbManagement().updateRoomField(room, MEMBERSHIP_JOB_FIELD, JOB_JOIN + alias); // So the joins are resumed if the bridge stops before they're done
 
-        discordChannel.getMembers().forEach(member -> {
-            var userId = this.bridge.getUserIdForDiscordUser(member.getUser());
-            var client = this.bridge.getClientManager().getClientForUser(userId);
+        Map<String, Member> members = new HashMap<>();
+        discordChannel.getMembers().forEach(member -> members.put(this.bridge.getUserIdForDiscordUser(member.getUser()), member));
 
-            try {
-                this.bridge.getClientManager().getBridgeClient().invite(id, userId); // Invite the user using the Appservice account
-                client.joinRoom(id); // Joins the room (accepting the invite)
-            } catch (MatrixNetworkException e) {
-                this.bridge.getLogger().warn("Error while handling new matrix room creation!");
-                this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
-                e.printStackTrace();
+        List<String> userIds = new ArrayList<>(members.keySet());
+        userIds.removeAll(this.getMatrixRoomMembers(id)); // Skip anyone that is already in the room
+
+        Map<String, Object> pending = new ConcurrentHashMap<>();
+        userIds.forEach(userId -> pending.put(userId, new Object()));
+        this.pendingJoins.put(id, pending);
+
+        this.bridge.getMembershipEngine().run("Joining members of #" + discordChannel.getName() + " to " + alias, userIds,
+                userId -> this.joinPendingMember(id, userId, members.get(userId))
+        ).thenAccept(failed -> {
+            if(failed.isEmpty()) {
+                this.pendingJoins.remove(id, pending);
+                this.bridge.getDbManagement().deleteRoomField(room, MEMBERSHIP_JOB_FIELD);
+            } else {
+                // The job stays in the database so they're joined again on the next start, until then they're joined when they send a message
+                this.bridge.getLogger().warn(failed.size() + " members couldn't be joined to " + alias + ", they will be retried.");
+            }
+
+            if(!Boolean.TRUE.equals(room.getAdditionalData().get("manual"))) { // Only set power levels if we control the room, i.e not manually bridged
+                try {
+                    this.bridge.getClientManager().getBridgeClient().setRoomPowerLevels(id, this.appendLevelsForMembers(this.getDefaultPowerLevels(), discordChannel));
+                } catch (MatrixNetworkException e) {
+                    this.bridge.getLogger().warn("Failed to set power levels for room " + id);
+                    this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
+                    e.printStackTrace();
+                }
             }
+
+            // Done! Display a message now saying the channel is bridged
+            discordChannel.sendMessage("**This room is now bridged to** ***" + alias + "***").submit();
         });
+    }
 
-        if(!manual) // Only set power levels if we control the room, i.e not manually bridged
-            this.bridge.getClientManager().getBridgeClient().setRoomPowerLevels(room.getMatrixId(), powerLevels);
+    /**
+     * Joins a member to a room, if they're still waiting to be joined since the room was bridged.
+     * Called before sending as the member, so their messages aren't rejected because they aren't in the room yet.
+     * @param roomId The Matrix room ID.
+     * @param member The Discord member.
+     * @throws MatrixNetworkException If the member couldn't be joined.
+     */
+    public void ensureJoined(String roomId, Member member) throws MatrixNetworkException {
+        if(!this.pendingJoins.containsKey(roomId)) return; // Everyone has been joined
 
-        // Done! Display a message now saying the channel is bridged
-        discordChannel.sendMessage("**This room is now bridged to** ***" + alias + "***").submit();
+        this.joinPendingMember(roomId, this.bridge.getUserIdForDiscordUser(member.getUser()), member);
+    }
+
+    private void joinPendingMember(String roomId, String userId, Member member) throws MatrixNetworkException {
+        var pending = this.pendingJoins.get(roomId);
+        var lock = pending != null ? pending.get(userId) : null;
+        if(lock == null) return; // Already joined
+
+        synchronized (lock) { // So the job and a message don't join the same user at once
+            if(!pending.containsKey(userId)) return; // Joined while we were waiting
+
+            this.bridge.getPuppetProvisioner().ensureProvisioned(member); // They're needed in the room now
+            this.bridge.getClientManager().getBridgeClient().invite(roomId, userId); // Invite the user using the Appservice account
+            this.bridge.getClientManager().getClientForUser(userId).joinRoom(roomId); // Joins the room (accepting the invite)
+            pending.remove(userId);
+        }
     }
 
     public void handleUnbridgeRoom(TextChannel channel, Room room, boolean kickAll) throws IOException, MatrixNetworkException {
         this.handleUnbridgeRoom(channel, room, kickAll, "Received request to unbridge room, unbridging room.");
     }
 
+    /**
+     * Unbridges a room, making all the Discord users leave it. Blocks until every user has left,
+     * the leaves themselves run in parallel.
+     */
     public void handleUnbridgeRoom(TextChannel channel, Room room, boolean kickAll, String message) throws IOException, MatrixNetworkException {
         this.bridge.getClientManager().getBridgeClient().sendSimpleMessage(room.getMatrixId(), message);
+        this.bridge.getDbManagement().updateRoomField(room, MEMBERSHIP_JOB_FIELD, kickAll ? JOB_UNBRIDGE_KICK : JOB_UNBRIDGE); // So the leaves are resumed if the bridge stops before they're done
 
-        channel.getMembers().forEach((member) -> {
-            var userId = this.bridge.getUserIdForDiscordUser(member.getUser());
-            var client = this.bridge.getClientManager().getClientForUser(userId);
+        this.removeMembers(channel, room, kickAll);
+    }
 
-            try {
-                client.leaveRoom(room.getMatrixId());
-            } catch (MatrixNetworkException e) {
-                this.bridge.getLogger().warn("Error while handling new matrix room creation!");
-                this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
-                e.printStackTrace();
-            }
-        });
+    private void removeMembers(TextChannel channel, Room room, boolean kickAll) throws MatrixNetworkException {
+        var matrixId = room.getMatrixId();
+        var roomMembers = this.getMatrixRoomMembers(matrixId);
+
+        var userIds = this.getMemberUserIds(channel);
+        if(!roomMembers.isEmpty()) userIds.retainAll(roomMembers); // Only the ones that are still in the room
+
+        this.bridge.getMembershipEngine().run("Removing members of #" + channel.getName() + " from " + matrixId, userIds,
+                userId -> this.bridge.getClientManager().getClientForUser(userId).leaveRoom(matrixId)).join();
 
         if(kickAll) {
-            var result = this.bridge.getClientManager().getBridgeClient().getRoomMembers(room.getMatrixId());
             // Get a list of room members
+            List<String> toKick = new ArrayList<>();
+            var result = this.bridge.getClientManager().getBridgeClient().getRoomMembers(matrixId);
             if(result.successful) {
                 result.result.members.forEach((key, value) -> {
-                    // We don't want to kick ourselves!
-                    if(key.startsWith("@" + this.bridge.getAppservice().getRegistration().getSenderLocalpart())) return;
-
-                    // Key contains the User ID
-                    try {
-                        this.bridge.getClientManager().getBridgeClient().kick(room.getMatrixId(), key, "This room is being unbridged!");
-                    } catch (MatrixNetworkException e) {
-                        this.bridge.getLogger().warn("Failed to kick user " + key + " during unbridging of room " + room.getMatrixId());
-                        this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
-                        e.printStackTrace();
-                    }
+                    // We don't want to kick ourselves! Key contains the User ID
+                    if(!key.startsWith("@" + this.bridge.getAppservice().getRegistration().getSenderLocalpart())) toKick.add(key);
                 });
             } else {
-                this.bridge.getLogger().error("Failed to get list of room members for room " + room.getMatrixId());
+                this.bridge.getLogger().error("Failed to get list of room members for room " + matrixId);
                 this.bridge.getLogger().error("Not kicking users in room.");
             }
+
+            this.bridge.getMembershipEngine().run("Kicking users from " + matrixId, toKick,
+                    userId -> this.bridge.getClientManager().getBridgeClient().kick(matrixId, userId, "This room is being unbridged!")).join();
         }
 
         // Leave the room once our work is done.
-        this.bridge.getClientManager().getBridgeClient().leaveRoom(room.getMatrixId());
+        this.bridge.getClientManager().getBridgeClient().leaveRoom(matrixId);
 
+        this.bridge.getRoomIndex().unindexMatrixId(matrixId);
+        this.pendingJoins.remove(matrixId);
         room.updateMatrixId("");
-        room.updateDataField("manual", false);
+        this.bridge.getDbManagement().updateRoomField(room, "manual", false);
+        this.bridge.getDbManagement().deleteRoomField(room, MEMBERSHIP_JOB_FIELD);
+    }
+
+    /**
+     * Resumes joining or removing members of rooms, which didn't finish because the bridge stopped.
+     * The members are joined in the background, removals are resumed on a separate thread.
+     * @param jda The JDA instance to get the channels from.
+     */
+    void resumeMembershipJobs(JDA jda) {
+        List<Runnable> removals = new ArrayList<>();
+
+        jda.getTextChannels().forEach(channel -> {
+            try {
+                var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
+                if(room == null || room.getMatrixId().equals("")) return;
+
+                var job = (String) room.getAdditionalData().get(MEMBERSHIP_JOB_FIELD);
+                if(job == null) return;
+
+                this.bridge.getLogger().info("Resuming unfinished membership changes for #" + channel.getName() + " (" + channel.getGuild().getName() + ")");
+                if(job.startsWith(JOB_JOIN)) {
+                    this.joinMembers(channel, room, job.substring(JOB_JOIN.length()));
+                } else {
+                    var kickAll = job.equals(JOB_UNBRIDGE_KICK);
+                    removals.add(() -> {
+                        try {
+                            this.removeMembers(channel, room, kickAll);
+                        } catch (MatrixNetworkException e) {
+                            this.bridge.getLogger().warn("Failed to resume unbridging of #" + channel.getName());
+                            this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
+                            e.printStackTrace();
+                        }
+                    });
+                }
+            } catch (IOException | MatrixNetworkException e) {
+                this.bridge.getLogger().warn("Failed to resume membership changes for #" + channel.getName());
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
+
+        if(!removals.isEmpty()) {
+            var thread = new Thread(() -> removals.forEach(Runnable::run));
+            thread.setName("UnbridgeResumeThread");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private List<String> getMemberUserIds(TextChannel channel) {
+        List<String> userIds = new ArrayList<>();
+        channel.getMembers().forEach(member -> userIds.add(this.bridge.getUserIdForDiscordUser(member.getUser())));
+        return userIds;
+    }
+
+    /**
+     * @return The users in a Matrix room, or an empty set if they couldn't be retrieved.
+     */
+    private Set<String> getMatrixRoomMembers(String matrixId) throws MatrixNetworkException {
+        var result = this.bridge.getClientManager().getBridgeClient().getRoomMembers(matrixId);
+        return result.successful ? new HashSet<>(result.result.members.keySet()) : new HashSet<>();
     }
 
     public void handleRoomTopicChange(TextChannel channel) throws IOException, MatrixNetworkException {
-        var roomId = io.github.jython234.matrix.bridges.discord.Util.getRoomIdForChannel(channel);
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
 
         // We want to check if it's in the database, check if it's bridged, and finally if it's manually bridged
         // we don't want to change the topic in a manually bridged room, as that's already set and we probably don't have permission
@@ -190,16 +318,16 @@ public class BridgingConnector {
     }
 
     public void handleRoomNameChange(TextChannel channel) throws IOException, MatrixNetworkException {
-        var roomId = io.github.jython234.matrix.bridges.discord.Util.getRoomIdForChannel(channel);
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var aliasName = io.github.jython234.matrix.bridges.discord.Util.getRoomAliasForChannel(channel);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
 
         // We want to check if it's in the database, check if it's bridged, and finally if it's manually bridged
         // we don't want to change the topic in a manually bridged room, as that's already set and we probably don't have permission
         if(room != null && !room.getMatrixId().equals("") && !((Boolean) room.getAdditionalData().get("manual"))) { // If it's not in the database it's not bridged
 
             // Create a new room alias with the new name and set it as the main alias
-            this.bridge.getClientManager().getBridgeClient().createRoomAlias("#!discord_" + roomId + ":" + this.bridge.getConfig().getMatrixDomain(), room.getMatrixId());
-            this.bridge.getClientManager().getBridgeClient().setRoomCanonicalAlias("#!discord_" + roomId + ":" + this.bridge.getConfig().getMatrixDomain(), room.getMatrixId());
+            this.bridge.getClientManager().getBridgeClient().createRoomAlias("#!discord_" + aliasName + ":" + this.bridge.getConfig().getMatrixDomain(), room.getMatrixId());
+            this.bridge.getClientManager().getBridgeClient().setRoomCanonicalAlias("#!discord_" + aliasName + ":" + this.bridge.getConfig().getMatrixDomain(), room.getMatrixId());
 
             this.bridge.getClientManager().getBridgeClient().setRoomName(room.getMatrixId(), "#" + channel.getName() + " (" + channel.getGuild().getName() + ") [Discord]");
         }
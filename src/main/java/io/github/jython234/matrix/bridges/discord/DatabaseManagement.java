@@ -4,23 +4,291 @@ import io.github.jython234.matrix.bridge.db.Room;
 import io.github.jython234.matrix.bridge.db.User;
 import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
 import io.github.jython234.matrix.bridge.network.MatrixUserClient;
+import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.Permission;
 import net.dv8tion.jda.core.entities.Member;
 import net.dv8tion.jda.core.entities.TextChannel;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class handles manipulating the database based on Discord
  * and Matrix events respectively.
  *
+ * Changes to the additional data of rooms and users are written behind: they're applied to the entry
+ * right away, but only written to the database once per tick, with one write for each changed entry.
+ * Entries are locked while they're changed or written, so an entry is never changed while it's being serialized.
+ *
  * @author jython234
  */
 public class DatabaseManagement {
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final Object REMOVED = new Object(); // Marks a field that was deleted
+    private static final String ROOM_KEYS_MIGRATED_KEY = "room-keys-migrated"; // Set once rooms are stored by channel snowflake
+
     private MatrixDiscordBridge bridge;
 
+    private final Object pendingLock = new Object();
+    private Map<String, PendingWrite<Room>> pendingRooms = new HashMap<>(); // Database ID -> changes
+    private Map<String, PendingWrite<User>> pendingUsers = new HashMap<>();
+
+    private final AtomicLong fieldUpdates = new AtomicLong(0);
+    private final AtomicLong writes = new AtomicLong(0);
+
+    private Thread writerThread;
+    private volatile Boolean roomKeysMigrated;
+
     DatabaseManagement(MatrixDiscordBridge bridge) {
         this.bridge = bridge;
+
+        this.writerThread = new Thread(this::writerLoop);
+        this.writerThread.setName("DatabaseWriterThread");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    private void writerLoop() {
+        while(true) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL);
+            } catch (InterruptedException e) {
+                return; // Interrupted, that means the bridge is stopping and will flush itself
+            }
+
+            try {
+                this.flush();
+            } catch (RuntimeException e) { // Keep the thread alive, otherwise nothing is written anymore
+                this.bridge.getLogger().warn("Error while writing changes to the database.");
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sets a field in the additional data of a room. The room is written to the database on the next flush.
+     * @param room The room.
+     * @param key The key of the field.
+     * @param value The new value of the field.
+     */
+    public void updateRoomField(Room room, String key, Object value) {
+        synchronized (room) {
+            room.getAdditionalData().put(key, value);
+        }
+        synchronized (this.pendingLock) {
+            this.pendingRooms.computeIfAbsent(room.getId(), id -> new PendingWrite<>()).add(room, key, value);
+        }
+        this.fieldUpdates.incrementAndGet();
+    }
+
+    /**
+     * Removes a field from the additional data of a room. The room is written to the database on the next flush.
+     * @param room The room.
+     * @param key The key of the field.
+     */
+    public void deleteRoomField(Room room, String key) {
+        synchronized (room) {
+            room.getAdditionalData().remove(key);
+        }
+        synchronized (this.pendingLock) {
+            this.pendingRooms.computeIfAbsent(room.getId(), id -> new PendingWrite<>()).add(room, key, REMOVED);
+        }
+        this.fieldUpdates.incrementAndGet();
+    }
+
+    /**
+     * Sets a field in the additional data of a user. The user is written to the database on the next flush.
+     * @param user The user.
+     * @param key The key of the field.
+     * @param value The new value of the field.
+     */
+    public void updateUserField(User user, String key, Object value) {
+        synchronized (user) {
+            user.getAdditionalData().put(key, value);
+        }
+        synchronized (this.pendingLock) {
+            this.pendingUsers.computeIfAbsent(user.getId(), id -> new PendingWrite<>()).add(user, key, value);
+        }
+        this.fieldUpdates.incrementAndGet();
+    }
+
+    /**
+     * Gets a room from the database, including the changes that haven't been written yet.
+     * @param id The ID of the room in the database.
+     * @return The room.
+     * @throws IOException If there was an error while accessing the database.
+     */
+    public Room getRoom(String id) throws IOException {
+        var room = this.bridge.getDatabase().getRoom(id);
+        if(room != null) {
+            synchronized (this.pendingLock) {
+                var pending = this.pendingRooms.get(id);
+                if(pending != null) pending.applyTo(room.getAdditionalData());
+            }
+        }
+        return room;
+    }
+
+    /**
+     * Gets a room from the database by its Matrix room ID, including the changes that haven't been written yet.
+     * @param matrixId The Matrix room ID.
+     * @return The room, or null if there isn't one bridged to the Matrix room.
+     * @throws IOException If there was an error while accessing the database.
+     */
+    public Room getRoomByMatrixId(String matrixId) throws IOException {
+        var room = this.bridge.getDatabase().getRoomByMatrixId(matrixId);
+        if(room != null) {
+            synchronized (this.pendingLock) {
+                var pending = this.pendingRooms.get(room.getId());
+                if(pending != null) pending.applyTo(room.getAdditionalData());
+            }
+        }
+        return room;
+    }
+
+    /**
+     * Gets a user from the database, including the changes that haven't been written yet.
+     * @param id The ID of the user in the database.
+     * @return The user.
+     * @throws IOException If there was an error while accessing the database.
+     */
+    public User getUser(String id) throws IOException {
+        var user = this.bridge.getDatabase().getUser(id);
+        if(user != null) {
+            synchronized (this.pendingLock) {
+                var pending = this.pendingUsers.get(id);
+                if(pending != null) pending.applyTo(user.getAdditionalData());
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Deletes a room from the database, dropping its changes that haven't been written yet.
+     * @param room The room.
+     * @throws IOException If there was an error while accessing the database.
+     */
+    public void deleteRoom(Room room) throws IOException {
+        synchronized (this.pendingLock) {
+            this.pendingRooms.remove(room.getId());
+        }
+        this.bridge.getDatabase().deleteRoom(room);
+    }
+
+    /**
+     * Writes all the changed rooms and users to the database. Entries that fail to be written
+     * are kept, so they are tried again on the next flush.
+     */
+    public void flush() {
+        Map<String, PendingWrite<Room>> rooms;
+        Map<String, PendingWrite<User>> users;
+        synchronized (this.pendingLock) {
+            if(this.pendingRooms.isEmpty() && this.pendingUsers.isEmpty()) return;
+
+            rooms = this.pendingRooms;
+            users = this.pendingUsers;
+            this.pendingRooms = new HashMap<>();
+            this.pendingUsers = new HashMap<>();
+        }
+
+        rooms.forEach((id, pending) -> {
+            try {
+                synchronized (pending.entity) { // So it isn't changed while it's serialized
+                    pending.applyTo(pending.entity.getAdditionalData()); // In case the entry was replaced by a copy without the changes
+                    this.bridge.getDatabase().putRoom(pending.entity);
+                }
+                this.writes.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                this.bridge.getLogger().warn("Failed to write room " + id + " to the database, retrying on the next flush.");
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                this.requeue(this.pendingRooms, id, pending);
+            }
+        });
+
+        users.forEach((id, pending) -> {
+            try {
+                synchronized (pending.entity) {
+                    pending.applyTo(pending.entity.getAdditionalData());
+                    this.bridge.getDatabase().putUser(pending.entity);
+                }
+                this.writes.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                this.bridge.getLogger().warn("Failed to write user " + id + " to the database, retrying on the next flush.");
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                this.requeue(this.pendingUsers, id, pending);
+            }
+        });
+    }
+
+    private <T> void requeue(Map<String, PendingWrite<T>> target, String id, PendingWrite<T> failed) {
+        synchronized (this.pendingLock) {
+            var newer = target.get(id);
+            if(newer != null) {
+                failed.fields.putAll(newer.fields); // Changes made since the failed write win
+                failed.entity = newer.entity;
+            }
+            target.put(id, failed);
+        }
+    }
+
+    /**
+     * @return The amount of rooms and users waiting to be written.
+     */
+    public int getPendingCount() {
+        synchronized (this.pendingLock) {
+            return this.pendingRooms.size() + this.pendingUsers.size();
+        }
+    }
+
+    /**
+     * @return The amount of field changes made since the bridge started.
+     */
+    public long getFieldUpdateCount() {
+        return this.fieldUpdates.get();
+    }
+
+    /**
+     * @return The amount of rooms and users written to the database since the bridge started.
+     */
+    public long getWriteCount() {
+        return this.writes.get();
+    }
+
+    void shutdown() {
+        this.writerThread.interrupt();
+        try {
+            this.writerThread.join(FLUSH_INTERVAL);
+        } catch (InterruptedException e) {
+            // Flush anyway
+        }
+        this.flush();
+    }
+
+    /**
+     * The field changes of a room or user that haven't been written yet.
+     */
+    private static class PendingWrite<T> {
+        private T entity; // The most recently changed copy of the entry, locked while it's changed or written
+        private final Map<String, Object> fields = new LinkedHashMap<>();
+
+        void add(T entity, String key, Object value) {
+            this.entity = entity;
+            this.fields.put(key, value);
+        }
+
+        void applyTo(Map<String, Object> data) {
+            this.fields.forEach((key, value) -> {
+                if(value == REMOVED) {
+                    data.remove(key);
+                } else {
+                    data.put(key, value);
+                }
+            });
+        }
     }
 
     /**
@@ -30,46 +298,84 @@ public class DatabaseManagement {
      * @param channel The channel to sync for.
      */
     void processUserSyncForChannel(TextChannel channel) {
-        var roomId = Util.getRoomIdForChannel(channel); // the ID of the room in the database, and also the matrix room alias
-
         try {
-            Room room;
-            if(!bridge.getDatabase().roomExists(roomId)) {
+            this.processRoomSyncForChannel(channel);
+
+            // Now we loop through all the channel members and add them to the database if they're not already in it.
+            channel.getMembers().forEach(this.bridge.getPuppetProvisioner()::register);
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to process sync for Discord channel #" + channel.getName() + ", guild: " + channel.getGuild().getName());
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Processes the room part of a channel "sync" only, adding a new Room entry for the
+     * channel if it doesn't exist and updating its privacy. Members are left untouched, the caller
+     * is responsible for setting them up with {@link PuppetProvisioner#register(Member)}.
+     * @param channel The channel to sync the room for.
+     * @return The Room entry for the channel.
+     * @throws IOException If there was an error while accessing the database.
+     */
+    Room processRoomSyncForChannel(TextChannel channel) throws IOException {
+        return this.processRoomSyncForChannel(channel, channel.getName());
+    }
+
+    /**
+     * @param legacyName The name the channel had when it was last synced, to find entries stored by older versions.
+     */
+    private Room processRoomSyncForChannel(TextChannel channel, String legacyName) throws IOException {
+        var roomId = Util.getRoomIdForChannel(channel); // the ID of the room in the database, the channel snowflake
+
+        Room room;
+        if(!bridge.getDatabase().roomExists(roomId)) {
+            var legacyId = Util.getRoomAliasForChannel(channel, legacyName);
+            if(!this.isRoomKeyMigrationDone() && this.bridge.getDatabase().roomExists(legacyId)) {
+                // Stored by an older version under the alias name, move it to the snowflake
+                room = this.migrateLegacyRoom(legacyId, roomId);
+            } else {
                 // Room doesn't exist, we need to create a new entry then.
                 room = new Room(this.bridge.getDatabase(), roomId);
                 this.bridge.getDatabase().putRoom(room);
 
-                room.updateDataField("guild", channel.getGuild().getId());
-                room.updateDataField("channel", channel.getId());
-                room.updateDataField("manual", false);
-            } else {
-                // The Room already exists in the database
-                room = bridge.getDatabase().getRoom(roomId);
+                this.updateRoomField(room, "guild", channel.getGuild().getId());
+                this.updateRoomField(room, "channel", channel.getId());
+                this.updateRoomField(room, "manual", false);
             }
+        } else {
+            // The Room already exists in the database
+            room = this.getRoom(roomId);
+        }
 
-            // Determine if the channel is private or public to @everyone.
-            room.updateDataField("private", false); // Assume public unless proven otherwise below
-            channel.getPermissionOverrides().forEach((permissionOverride -> {
-                if(permissionOverride.isRoleOverride() && permissionOverride.getRole().isPublicRole()) { // This gets permission overrides for @everyone, if there are any
-                    if(permissionOverride.getDenied().contains(Permission.MESSAGE_READ)) { // Check if @everyone has Read Messages denied
-                        room.updateDataField("private", true); // @everyone has Read Messages denied so it's most likely a private room.
-                    }
-                }
-            }));
-            // The private field is used to determine if the corresponding Matrix room needs to be invite only.
+        // The alias name is stored so the room can be found from its Matrix alias
+        var alias = Util.getRoomAliasForChannel(channel);
+        if(!alias.equals(room.getAdditionalData().get("alias"))) {
+            this.updateRoomField(room, "alias", alias);
+        }
 
-            // Now we loop through all the channel members and add them to the database if they're not already in it.
-            channel.getMembers().forEach(this::setupMemberInDatabase);
-        } catch (IOException e) {
-            this.bridge.getLogger().warn("Failed to process sync for Discord channel #" + channel.getName() + ", guild: " + channel.getGuild().getName());
-            this.bridge.getLogger().error("IOException: " + e.getMessage());
-            e.printStackTrace();
+        // Determine if the channel is private or public to @everyone.
+        var isPrivate = false; // Assume public unless proven otherwise below
+        for(var permissionOverride : channel.getPermissionOverrides()) {
+            if(permissionOverride.isRoleOverride() && permissionOverride.getRole().isPublicRole()) { // This gets permission overrides for @everyone, if there are any
+                if(permissionOverride.getDenied().contains(Permission.MESSAGE_READ)) { // Check if @everyone has Read Messages denied
+                    isPrivate = true; // @everyone has Read Messages denied so it's most likely a private room.
+                }
+            }
+        }
+        if(!Boolean.valueOf(isPrivate).equals(room.getAdditionalData().get("private"))) {
+            this.updateRoomField(room, "private", isPrivate);
         }
+        // The private field is used to determine if the corresponding Matrix room needs to be invite only.
+
+        this.bridge.getWebhookManager().migrateRoomWebhooks(channel.getIdLong(), room);
+        this.bridge.getRoomIndex().index(channel.getIdLong(), room);
+
+        return room;
     }
 
     void processChannelDeletion(TextChannel channel) throws IOException, MatrixNetworkException {
-        var roomId = Util.getRoomIdForChannel(channel);
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
 
         if(room != null) { // Check if it's in the database
             if(!room.getMatrixId().equals("")) { // Check if it has been bridged and has a Matrix room.
@@ -78,20 +384,27 @@ public class DatabaseManagement {
             }
 
             // Now we can delete it from the database
-            this.bridge.getDatabase().deleteRoom(room);
+            this.deleteRoom(room);
+            this.bridge.getRoomIndex().remove(channel.getIdLong());
+            this.bridge.getWebhookManager().invalidateChannel(channel.getIdLong());
         } else {
             this.bridge.getLogger().warn("Attempted to process channel deletion for #" + channel.getName() + " (" + channel.getGuild().getName() + "), but it is not in the database.");
         }
     }
 
-    private void setupMemberInDatabase(Member member) {
+    /**
+     * Sets up the database entry, display name and avatar of a Discord member's Matrix user.
+     * @param member The Discord member.
+     * @return If the member was set up, false if there was an error.
+     */
+    boolean setupMemberInDatabase(Member member) {
         try {
             User user;
             var client = this.bridge.getClientManager().getClientForUser(this.bridge.getUserIdForDiscordUser(member.getUser()));
 
             if(this.bridge.getDatabase().userExists(member.getUser().getId())) {
                 // User already exists in database
-                user = this.bridge.getDatabase().getUser(member.getUser().getId());
+                user = this.getUser(member.getUser().getId());
             } else {
                 // User doesn't exist
                 user = new User(this.bridge.getDatabase(), User.Type.REMOTE_USER, member.getUser().getId());
@@ -109,8 +422,9 @@ public class DatabaseManagement {
                     || !user.getAdditionalData().get("avatar").equals(member.getUser().getAvatarId()))
                     && member.getUser().getAvatarId() != null) { // Make sure to check if the avatarId is null, that means they don't have a profile picture set
 
-                this.updateAvatarFromDiscordUser(user, member.getUser(), client);
+                this.updateAvatarFromDiscordUser(user, member.getUser());
             }
+            return true;
         } catch (IOException e) {
             this.bridge.getLogger().warn("Failed to setup member in database for Discord user: " + member.getUser().getName());
             this.bridge.getLogger().error("IOException: " + e.getMessage());
@@ -120,30 +434,78 @@ public class DatabaseManagement {
             this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
             e.printStackTrace();
         }
+        return false;
     }
 
     void processChannelNameChange(TextChannel channel, String oldName) throws IOException, MatrixNetworkException {
-        var room = this.bridge.getDatabase().getRoom(Util.getRoomIdForChannel(channel, oldName));
-        if(room != null) {
-            this.processUserSyncForChannel(channel); // Create a new entry with the new name and same data
-            var newRoom = this.bridge.getDatabase().getRoom(Util.getRoomIdForChannel(channel));
+        if(!this.bridge.getDatabase().roomExists(Util.getRoomIdForChannel(channel))
+                && !this.bridge.getDatabase().roomExists(Util.getRoomAliasForChannel(channel, oldName))) {
+            return; // It's not in the database, so we don't have access to it
+        }
+
+        this.processRoomSyncForChannel(channel, oldName); // The entry stays the same, only the alias is updated
+        this.bridge.getConnector().handleRoomNameChange(channel); // Update the name on the Matrix side
+    }
+
+    /**
+     * Moves a room stored by an older version under its alias name to its channel snowflake.
+     */
+    private Room migrateLegacyRoom(String legacyId, String roomId) throws IOException {
+        var legacyRoom = this.getRoom(legacyId);
+
+        var room = new Room(this.bridge.getDatabase(), roomId);
+        this.bridge.getDatabase().putRoom(room);
+        room.updateMatrixId(legacyRoom.getMatrixId());
+        legacyRoom.getAdditionalData().forEach((key, value) -> this.updateRoomField(room, key, value));
 
-            newRoom.updateMatrixId(room.getMatrixId()); // Transfer the old Matrix ID
-            room.getAdditionalData().forEach(newRoom::updateDataField); // Transfer all the old key, value pairs of additional data
+        this.deleteRoom(legacyRoom);
+        this.bridge.getLogger().info("Moved room " + legacyId + " to its channel ID " + roomId);
+        return room;
+    }
 
-            this.bridge.getDatabase().deleteRoom(room); // Delete the old entry
+    private boolean isRoomKeyMigrationDone() throws IOException {
+        if(this.roomKeysMigrated == null) {
+            this.roomKeysMigrated = this.bridge.getDatabase().getExtraData(ROOM_KEYS_MIGRATED_KEY) != null;
+        }
+        return this.roomKeysMigrated;
+    }
 
-            this.bridge.getConnector().handleRoomNameChange(channel); // Update the name on the Matrix side
+    /**
+     * Marks the rooms stored by older versions as moved, called after the initial sync. If the room of
+     * any channel is still stored under its alias name, for example because its sync failed, it stays unmarked
+     * and is checked again next time. Once marked, later syncs don't look for them anymore.
+     * @param jda The JDA instance to get the channels from.
+     */
+    void finishRoomKeyMigration(JDA jda) {
+        try {
+            if(this.isRoomKeyMigrationDone()) return;
+
+            var remaining = 0;
+            for(var guild : jda.getGuilds()) {
+                for(var channel : guild.getTextChannels()) {
+                    if(this.bridge.getDatabase().roomExists(Util.getRoomAliasForChannel(channel))) remaining++;
+                }
+            }
+            if(remaining > 0) {
+                this.bridge.getLogger().warn(remaining + " rooms stored by an older version haven't been moved yet, they will be moved on the next sync.");
+                return;
+            }
+
+            this.bridge.getDatabase().putExtraData(ROOM_KEYS_MIGRATED_KEY, true);
+            this.roomKeysMigrated = true;
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to mark the room migration as done, it will be checked again next time.");
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
         }
     }
 
     public void updateUsernameFromDiscordUser(User user, net.dv8tion.jda.core.entities.User discordUser, MatrixUserClient client) throws MatrixNetworkException {
-        user.updateDataField("name", discordUser.getName());
+        this.updateUserField(user, "name", discordUser.getName());
         client.setDisplayName((discordUser.isBot() ? "[BOT] " : "") + discordUser.getName()); // Set the matrix display name
     }
 
-    public void updateAvatarFromDiscordUser(User user, net.dv8tion.jda.core.entities.User discordUser, MatrixUserClient client) throws IOException {
-        user.updateDataField("avatar", discordUser.getAvatarId());
-        this.bridge.setMatrixAvatarFromDiscord(client, discordUser); // Set the avatar on matrix
+    public void updateAvatarFromDiscordUser(User user, net.dv8tion.jda.core.entities.User discordUser) {
+        this.bridge.getAvatarQueue().submit(discordUser); // Set the avatar on matrix in the background, the field is updated once it's set
     }
 }
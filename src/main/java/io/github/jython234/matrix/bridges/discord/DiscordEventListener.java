@@ -10,7 +10,12 @@ import net.dv8tion.jda.core.events.channel.text.update.TextChannelUpdateNameEven
 import net.dv8tion.jda.core.events.channel.text.update.TextChannelUpdateTopicEvent;
 import net.dv8tion.jda.core.events.emote.EmoteAddedEvent;
 import net.dv8tion.jda.core.events.emote.EmoteRemovedEvent;
+import net.dv8tion.jda.core.events.emote.update.EmoteUpdateNameEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.core.events.guild.member.GuildMemberLeaveEvent;
+import net.dv8tion.jda.core.events.message.guild.GuildMessageDeleteEvent;
 import net.dv8tion.jda.core.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.core.events.message.guild.GuildMessageUpdateEvent;
 import net.dv8tion.jda.core.events.user.UserTypingEvent;
 import net.dv8tion.jda.core.events.user.update.UserUpdateAvatarEvent;
 import net.dv8tion.jda.core.events.user.update.UserUpdateGameEvent;
@@ -22,9 +27,11 @@ import java.io.IOException;
 
 public class DiscordEventListener extends ListenerAdapter {
     private MatrixDiscordBridge bridge;
+    private MetricsRegistry.Timer discordToMatrixTimer;
 
     public DiscordEventListener(MatrixDiscordBridge bridge) {
         this.bridge = bridge;
+        this.discordToMatrixTimer = bridge.getMetrics().timer("message_duration_seconds", "Time spent bridging a message, by direction.", "direction", "discord_to_matrix");
     }
 
     @Override
@@ -36,16 +43,12 @@ public class DiscordEventListener extends ListenerAdapter {
 
         event.getJDA().getPresence().setPresence(Game.playing("Matrix <-> Discord Bridge"), false);
 
-        event.getJDA().getGuilds().forEach((guild -> guild.getTextChannels().forEach(textChannel -> {
-            if(textChannel.getGuild().getSelfMember().hasPermission(textChannel, Permission.MESSAGE_READ)) { // Check if we have access to the channel
-                this.bridge.getLogger().info("Processing sync for: #" + textChannel.getName());
-                this.bridge.databaseManagement.processUserSyncForChannel(textChannel);
-            }
-        })));
+        this.bridge.initialSyncManager.syncAll(event.getJDA());
 
         var end = System.currentTimeMillis();
         this.bridge.getLogger().info("Initial Sync complete in " + (end - start) / 1000 + " seconds.");
 
+        this.bridge.getConnector().resumeMembershipJobs(event.getJDA());
         this.bridge.getEmojiManager().syncEmojis(event.getJDA());
     }
 
@@ -53,11 +56,14 @@ public class DiscordEventListener extends ListenerAdapter {
 
     @Override
     public void onEmoteAdded(EmoteAddedEvent event) {
+        this.bridge.getMentionIndex().handleEmoteAdded(event.getEmote());
         this.bridge.getEmojiManager().syncEmoji(event.getEmote());
     }
 
     @Override
     public void onEmoteRemoved(EmoteRemovedEvent event) {
+        this.bridge.getMentionIndex().handleEmoteRemoved(event.getEmote());
+
         try {
             this.bridge.getEmojiManager().deleteEmoji(event.getEmote());
         } catch (IOException e) {
@@ -67,38 +73,86 @@ public class DiscordEventListener extends ListenerAdapter {
         }
     }
 
+    @Override
+    public void onEmoteUpdateName(EmoteUpdateNameEvent event) {
+        this.bridge.getMentionIndex().handleEmoteRenamed(event.getEmote(), event.getOldName());
+    }
+
     // Messages ------------------------------------------------------
 
     @Override
     public void onGuildMessageReceived(GuildMessageReceivedEvent event) {
-        try {
-            if(event.getAuthor().getId().equals(this.bridge.getDiscordConfig().getDiscord().getClientId()) && event.getMessage().getContentDisplay().startsWith("__**Matrix:**__"))
-                return; // We don't want echo from our own bot for Matrix event messages like joins and leaves
+        if(event.getAuthor().getId().equals(this.bridge.getDiscordConfig().getDiscord().getClientId()) && event.getMessage().getContentDisplay().startsWith("__**Matrix:**__"))
+            return; // We don't want echo from our own bot for Matrix event messages like joins and leaves
+
+        // Process it in the background so the JDA event thread isn't held up by Matrix, messages in the same channel stay in order
+        this.bridge.getDiscordToMatrixExecutor().submit(event.getChannel().getIdLong(), () -> {
+            var start = System.nanoTime();
+            try {
+                this.bridge.getCommandHandler().processCommand(event); // Try to process as a bot command first
+                this.bridge.getMessageEventsHandler().bridgeDiscordToMatrix(event); // Send the message to Matrix
+            } catch (MatrixNetworkException | IOException e) {
+                this.bridge.getMetrics().recordError(e);
+                this.bridge.getLogger().error("Error while processing message event from Discord");
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                this.discordToMatrixTimer.recordSince(start);
+            }
+        });
+    }
 
-            this.bridge.getCommandHandler().processCommand(event); // Try to process as a bot command first
-            this.bridge.getMessageEventsHandler().bridgeDiscordToMatrix(event); // Send the message to Matrix
-        } catch (MatrixNetworkException | IOException e) {
-            this.bridge.getLogger().error("Error while processing message event from Discord");
-            this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
-            e.printStackTrace();
-        }
+    @Override
+    public void onGuildMessageDelete(GuildMessageDeleteEvent event) {
+        // Queued with the channel's messages, so a message is always bridged before its deletion
+        this.bridge.getDiscordToMatrixExecutor().submit(event.getChannel().getIdLong(), () -> {
+            try {
+                this.bridge.getMessageEventsHandler().bridgeDiscordDeletion(event);
+            } catch (MatrixNetworkException | IOException e) {
+                this.bridge.getLogger().error("Error while processing message deletion from Discord");
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @Override
+    public void onGuildMessageUpdate(GuildMessageUpdateEvent event) {
+        // Queued with the channel's messages, so a message is always bridged before its edits
+        this.bridge.getDiscordToMatrixExecutor().submit(event.getChannel().getIdLong(), () -> {
+            try {
+                this.bridge.getMessageEventsHandler().bridgeDiscordEdit(event);
+            } catch (MatrixNetworkException | IOException e) {
+                this.bridge.getMetrics().recordError(e);
+                this.bridge.getLogger().error("Error while processing message edit from Discord");
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
     }
 
     // User ----------------------------------------------------------
 
     @Override
     public void onUserTyping(UserTypingEvent event) {
-        try {
-            this.bridge.getUserEventsHandler().handleDiscordUserTyping(event);
-        } catch (MatrixNetworkException | IOException e) {
-            this.bridge.getLogger().error("Error while processing typing event from Discord");
-            this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
-            e.printStackTrace();
-        }
+        if(event.getTextChannel() == null) return; // Typing in a private channel, we only bridge guild channels
+
+        // Queued with the channel's messages, so a typing notification can't arrive after the message it was for
+        this.bridge.getDiscordToMatrixExecutor().submit(event.getTextChannel().getIdLong(), () -> {
+            try {
+                this.bridge.getUserEventsHandler().handleDiscordUserTyping(event);
+            } catch (MatrixNetworkException | IOException e) {
+                this.bridge.getLogger().error("Error while processing typing event from Discord");
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
     }
 
     @Override
     public void onUserUpdateName(UserUpdateNameEvent event) {
+        this.bridge.getMentionIndex().handleUserRenamed(event.getUser(), event.getOldName());
+
         try {
             this.bridge.getUserEventsHandler().handleDiscordUserNameChange(event);
         } catch (MatrixNetworkException | IOException e) {
@@ -112,39 +166,33 @@ public class DiscordEventListener extends ListenerAdapter {
     public void onUserUpdateAvatar(UserUpdateAvatarEvent event) {
         try {
             this.bridge.getUserEventsHandler().handleDiscordAvatarChange(event);
-        } catch (MatrixNetworkException | IOException e) {
+        } catch (IOException e) {
             this.bridge.getLogger().error("Error while processing avatar change event from Discord");
-            this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
     @Override
     public void onUserUpdateOnlineStatus(UserUpdateOnlineStatusEvent event) {
-        var id = this.bridge.getUserIdForDiscordUser(event.getUser());
-        if(!this.bridge.getDatabase().userExists(id)) return; // If the user isn't in the database, they aren't on Matrix
-
-        try {
-            this.bridge.getPresenceHandler().setPresenceForUserFromDiscord(event.getMember(), this.bridge.getClientManager().getClientForUser(id));
-        } catch (MatrixNetworkException e) {
-            this.bridge.getLogger().error("Error while processing UserUpdateOnlineStatus event from Discord");
-            this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
-            e.printStackTrace();
-        }
+        this.bridge.getPresenceHandler().handleDiscordPresenceChange(event.getMember());
     }
 
     @Override
     public void onUserUpdateGame(UserUpdateGameEvent event) {
-        var id = this.bridge.getUserIdForDiscordUser(event.getUser());
-        if(!this.bridge.getDatabase().userExists(id)) return; // If the user isn't in the database, they aren't on Matrix
+        this.bridge.getPresenceHandler().handleDiscordPresenceChange(event.getMember());
+    }
 
-        try {
-            this.bridge.getPresenceHandler().setPresenceForUserFromDiscord(event.getMember(), this.bridge.getClientManager().getClientForUser(id));
-        } catch (MatrixNetworkException e) {
-            this.bridge.getLogger().error("Error while processing UserUpdateOnlineStatus event from Discord");
-            this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
-            e.printStackTrace();
-        }
+    // Members -------------------------------------------------------
+
+    @Override
+    public void onGuildMemberJoin(GuildMemberJoinEvent event) {
+        this.bridge.getMentionIndex().handleMemberJoined(event.getMember());
+    }
+
+    @Override
+    public void onGuildMemberLeave(GuildMemberLeaveEvent event) {
+        this.bridge.getMentionIndex().handleMemberLeft(event.getGuild(), event.getUser());
     }
 
     // Channels -------------------------------------------------------------------------------
@@ -158,7 +206,7 @@ public class DiscordEventListener extends ListenerAdapter {
             this.bridge.getDbManagement().processUserSyncForChannel(event.getChannel());
             this.bridge.getLogger().info("Done.");
 
-            event.getChannel().sendMessage("**You can join this room on Matrix at** ***#!discord_" + Util.getRoomIdForChannel(event.getChannel()) + ":" + this.bridge.getConfig().getMatrixDomain() + "***").submit();
+            event.getChannel().sendMessage("**You can join this room on Matrix at** ***#!discord_" + Util.getRoomAliasForChannel(event.getChannel()) + ":" + this.bridge.getConfig().getMatrixDomain() + "***").submit();
         } else {
             this.bridge.getLogger().info("No MESSAGE_READ permission in room, excluding from database.");
         }
@@ -0,0 +1,228 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import org.w3c.dom.Node;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Scales images in memory, used to scale custom emotes down to the size
+ * they're displayed at.
+ *
+ * Images that are already small enough are returned as they are. Animated GIFs stay
+ * animated, each frame is scaled and the frame delays are kept. The PNG and GIF writers are
+ * cached per thread, as looking them up is a large part of the cost of scaling a small image.
+ *
+ * @author jython234
+ */
+public class ImageScaler {
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+
+    private static final ThreadLocal<ImageWriter> pngWriter = ThreadLocal.withInitial(() -> ImageIO.getImageWritersByFormatName("png").next());
+    private static final ThreadLocal<ImageWriter> gifWriter = ThreadLocal.withInitial(() -> ImageIO.getImageWritersByFormatName("gif").next());
+
+    /**
+     * Scales an image so it fits in a square.
+     * @param data The image.
+     * @param size The width and height of the square, in pixels.
+     * @return The scaled image, which is a PNG, or a GIF if the image was an animated GIF.
+     * @throws IOException If the image couldn't be read.
+     */
+    public static Scaled scale(byte[] data, int size) throws IOException {
+        try(var in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            var readers = ImageIO.getImageReaders(in);
+            if(!readers.hasNext()) throw new IOException("Unsupported image format!");
+
+            var reader = readers.next();
+            try {
+                reader.setInput(in);
+                var format = reader.getFormatName().toLowerCase();
+                var isGif = format.equals("gif");
+
+                // Fast path: it's already small enough, and in a format Matrix clients can display
+                if(reader.getWidth(0) <= size && reader.getHeight(0) <= size && (isGif || format.equals("png"))) {
+                    return isGif ? new Scaled(data, "image/gif", "gif") : new Scaled(data, "image/png", "png");
+                }
+
+                if(isGif && reader.getNumImages(true) > 1) {
+                    return new Scaled(scaleAnimatedGif(reader, size), "image/gif", "gif");
+                }
+
+                return new Scaled(write(pngWriter.get(), scaleFrame(reader.read(0), size)), "image/png", "png");
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage scaleFrame(Image image, int size) {
+        var imgScaled = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB); // Transparent to begin with
+
+        Graphics2D graphics = imgScaled.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, size, size, null);
+        graphics.dispose();
+
+        return imgScaled;
+    }
+
+    private static byte[] write(ImageWriter writer, BufferedImage image) throws IOException {
+        var out = new ByteArrayOutputStream(4096);
+        try(var imageOut = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            writer.write(image);
+        } finally {
+            writer.reset();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Scales every frame of an animated GIF. Frames can be smaller than the GIF and drawn on top of the
+     * previous ones, so they're drawn onto a canvas the size of the whole GIF first and the canvas is scaled.
+     */
+    private static byte[] scaleAnimatedGif(ImageReader reader, int size) throws IOException {
+        var width = reader.getWidth(0);
+        var height = reader.getHeight(0);
+        var screen = getChild(reader.getStreamMetadata().getAsTree(GIF_STREAM_METADATA), "LogicalScreenDescriptor");
+        if(screen != null) {
+            width = Math.max(width, getIntAttribute(screen, "logicalScreenWidth", width));
+            height = Math.max(height, getIntAttribute(screen, "logicalScreenHeight", height));
+        }
+
+        var canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        var canvasGraphics = canvas.createGraphics();
+
+        var writer = gifWriter.get();
+        var out = new ByteArrayOutputStream(16384);
+        try(var imageOut = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            writer.prepareWriteSequence(null);
+
+            var frames = reader.getNumImages(true);
+            for(int i = 0; i < frames; i++) {
+                var frame = reader.read(i);
+                var tree = reader.getImageMetadata(i).getAsTree(GIF_IMAGE_METADATA);
+
+                var descriptor = getChild(tree, "ImageDescriptor");
+                var left = descriptor != null ? getIntAttribute(descriptor, "imageLeftPosition", 0) : 0;
+                var top = descriptor != null ? getIntAttribute(descriptor, "imageTopPosition", 0) : 0;
+
+                var control = getChild(tree, "GraphicControlExtension");
+                var delay = control != null ? getIntAttribute(control, "delayTime", 10) : 10;
+                var disposal = control != null ? ((IIOMetadataNode) control).getAttribute("disposalMethod") : "none";
+
+                canvasGraphics.drawImage(frame, left, top, null);
+
+                var scaled = scaleFrame(canvas, size);
+                writer.writeToSequence(new IIOImage(scaled, null, createFrameMetadata(writer, scaled, delay, i == 0)), null);
+
+                if(disposal.equals("restoreToBackgroundColor")) {
+                    canvasGraphics.setComposite(AlphaComposite.Clear);
+                    canvasGraphics.fillRect(left, top, frame.getWidth(), frame.getHeight());
+                    canvasGraphics.setComposite(AlphaComposite.SrcOver);
+                }
+            }
+
+            writer.endWriteSequence();
+        } finally {
+            canvasGraphics.dispose();
+            writer.reset();
+        }
+        return out.toByteArray();
+    }
+
+    private static IIOMetadata createFrameMetadata(ImageWriter writer, BufferedImage frame, int delay, boolean first) throws IOException {
+        var metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(frame), null);
+        var root = (IIOMetadataNode) metadata.getAsTree(GIF_IMAGE_METADATA);
+
+        var control = getOrCreateChild(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "restoreToBackgroundColor"); // Every frame is a complete image
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(delay));
+        if(!control.hasAttribute("transparentColorFlag")) control.setAttribute("transparentColorFlag", "FALSE");
+        if(!control.hasAttribute("transparentColorIndex")) control.setAttribute("transparentColorIndex", "0");
+
+        if(first) {
+            // Loop forever
+            var extensions = getOrCreateChild(root, "ApplicationExtensions");
+            var loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[] {0x1, 0x0, 0x0});
+            extensions.appendChild(loop);
+        }
+
+        metadata.setFromTree(GIF_IMAGE_METADATA, root);
+        return metadata;
+    }
+
+    private static Node getChild(Node node, String name) {
+        for(var child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if(child.getNodeName().equals(name)) return child;
+        }
+        return null;
+    }
+
+    private static IIOMetadataNode getOrCreateChild(IIOMetadataNode node, String name) {
+        var child = getChild(node, name);
+        if(child != null) return (IIOMetadataNode) child;
+
+        var created = new IIOMetadataNode(name);
+        node.appendChild(created);
+        return created;
+    }
+
+    private static int getIntAttribute(Node node, String name, int defaultValue) {
+        var attribute = node.getAttributes().getNamedItem(name);
+        if(attribute == null) return defaultValue;
+
+        try {
+            return Integer.parseInt(attribute.getNodeValue());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A scaled image.
+     */
+    public static class Scaled {
+        private final byte[] data;
+        private final String contentType;
+        private final String extension;
+
+        Scaled(byte[] data, String contentType, String extension) {
+            this.data = data;
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        /**
+         * @return The file extension for the image's format, without a dot.
+         */
+        public String getExtension() {
+            return this.extension;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.Permission;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.TextChannel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the initial sync of all Discord channels and members into
+ * the database when the bridge connects to Discord.
+ *
+ * Channels and members are processed in parallel on a pool of workers (the size is
+ * set in the "sync" section of the config), and each Discord user is only set up once
+ * per sync, even if they are a member of many channels.
+ *
+ * @author jython234
+ */
+public class InitialSyncManager {
+    private MatrixDiscordBridge bridge;
+
+    InitialSyncManager(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Syncs every readable text channel of every guild, and all of their members. This
+     * method blocks until the sync has completed.
+     * @param jda The JDA instance to get the guilds from.
+     */
+    void syncAll(JDA jda) {
+        var workers = Math.max(1, this.bridge.getDiscordConfig().getSync().getWorkers());
+        var threadCount = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            var thread = new Thread(runnable);
+            thread.setName("InitialSyncWorker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Set<String> processedUsers = ConcurrentHashMap.newKeySet(); // Discord users that have already been set up during this sync
+
+        try {
+            jda.getGuilds().forEach(guild -> this.syncGuild(guild, executor, processedUsers));
+            this.bridge.getDbManagement().finishRoomKeyMigration(jda); // Every channel has been synced, so every room should have been moved
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void syncGuild(Guild guild, ExecutorService executor, Set<String> processedUsers) {
+        var start = System.currentTimeMillis();
+
+        List<TextChannel> channels = new ArrayList<>();
+        guild.getTextChannels().forEach(textChannel -> {
+            if(guild.getSelfMember().hasPermission(textChannel, Permission.MESSAGE_READ)) { // Check if we have access to the channel
+                channels.add(textChannel);
+            }
+        });
+
+        // Process the Room entries first
+        List<CompletableFuture<Void>> roomTasks = new ArrayList<>();
+        channels.forEach(textChannel -> roomTasks.add(CompletableFuture.runAsync(() -> {
+            try {
+                this.bridge.getDbManagement().processRoomSyncForChannel(textChannel);
+            } catch (IOException e) {
+                this.bridge.getLogger().warn("Failed to process sync for Discord channel #" + textChannel.getName() + ", guild: " + guild.getName());
+                this.bridge.getLogger().error("IOException: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, executor)));
+        CompletableFuture.allOf(roomTasks.toArray(new CompletableFuture[0])).join();
+
+        Map<Long, Member> guildMembers = new HashMap<>();
+        channels.forEach(textChannel -> textChannel.getMembers().forEach(member -> guildMembers.put(member.getUser().getIdLong(), member)));
+
+        // Now collect every member that hasn't been set up during this sync yet, and has joined or changed since the last snapshot
+        var snapshot = this.bridge.getMemberSnapshots().load(guild.getIdLong());
+        var unchanged = 0;
+        List<Member> members = new ArrayList<>();
+        for(var member : guildMembers.values()) {
+            if(!processedUsers.add(member.getUser().getId())) continue;
+
+            if(snapshot.isUnchanged(member)) {
+                this.bridge.getPuppetProvisioner().markProvisioned(member.getUser().getIdLong()); // Already up to date on Matrix
+                unchanged++;
+            } else {
+                members.add(member);
+            }
+        }
+
+        this.bridge.getLogger().info("Syncing " + channels.size() + " channels and " + members.size() + " members for guild " + guild.getName() + " ("
+                + unchanged + " unchanged, " + snapshot.countMissing(guildMembers.keySet()) + " left since last run)...");
+
+        var done = new AtomicInteger(0);
+        var step = Math.max(1, members.size() / 10); // Report progress every 10%
+
+        List<CompletableFuture<Void>> memberTasks = new ArrayList<>();
+        members.forEach(member -> memberTasks.add(CompletableFuture.runAsync(() -> {
+            this.bridge.getPuppetProvisioner().register(member);
+
+            var count = done.incrementAndGet();
+            if(count % step == 0 && count != members.size()) {
+                this.bridge.getLogger().info("Sync progress for guild " + guild.getName() + ": " + count + "/" + members.size() + " members");
+            }
+        }, executor)));
+        CompletableFuture.allOf(memberTasks.toArray(new CompletableFuture[0])).join();
+
+        this.saveSnapshot(guild);
+
+        var end = System.currentTimeMillis();
+        this.bridge.getLogger().info("Sync for guild " + guild.getName() + " complete in " + (end - start) / 1000 + " seconds.");
+    }
+
+    /**
+     * Saves the snapshot of the members of a guild that are set up on Matrix, so they
+     * are skipped in the next initial sync if they haven't changed. Members whose setup failed
+     * or hasn't run yet, or whose avatar hasn't been set, are left out, so they're set up again next time.
+     * @param guild The guild.
+     */
+    void saveSnapshot(Guild guild) {
+        List<Member> members = new ArrayList<>();
+        guild.getMembers().forEach(member -> {
+            var id = member.getUser().getIdLong();
+            if(this.bridge.getPuppetProvisioner().isProvisioned(id) && this.bridge.getAvatarQueue().isAvatarSet(id)) {
+                members.add(member);
+            }
+        });
+        this.bridge.getMemberSnapshots().save(guild.getIdLong(), members);
+    }
+}
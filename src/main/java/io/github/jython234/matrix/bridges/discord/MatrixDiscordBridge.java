@@ -17,7 +17,6 @@ import net.dv8tion.jda.core.AccountType;
 import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.JDABuilder;
 import net.dv8tion.jda.core.entities.User;
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -25,7 +24,6 @@ import javax.security.auth.login.LoginException;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
 
 /**
  * Main Class for the discord bridge. It's also the base matrix bridge
@@ -46,6 +44,19 @@ public class MatrixDiscordBridge extends MatrixBridge {
     protected Logger logger;
     protected DatabaseManagement databaseManagement;
     protected BridgingConnector connector;
+    protected InitialSyncManager initialSyncManager;
+    protected RoomIndex roomIndex;
+    protected MatrixMediaClient mediaClient;
+    protected MediaCache mediaCache;
+    protected MembershipEngine membershipEngine;
+    protected PuppetProvisioner puppetProvisioner;
+    protected MemberSnapshots memberSnapshots;
+    protected AvatarQueue avatarQueue;
+    protected MessageIdStore messageIdStore;
+    protected MatrixEventRedactor eventRedactor;
+    protected MatrixEventEditor eventEditor;
+    protected MetricsRegistry metrics;
+    private MetricsRegistry.Timer matrixToDiscordTimer;
 
     private CommandHandler commandHandler;
     private PresenceHandler presenceHandler;
@@ -53,18 +64,28 @@ public class MatrixDiscordBridge extends MatrixBridge {
     private UserEventsHandler userEventsHandler;
     private EmojiManager emojiManager;
     private WebhookManager webhookManager;
+    private MentionIndex mentionIndex;
+
+    protected OrderedTaskExecutor matrixToDiscordExecutor;
+    protected OrderedTaskExecutor discordToMatrixExecutor;
 
     protected JDA jda;
 
     private DiscordBridgeConfig discordConfig;
-    private File tmpDir = new File(System.getProperty("java.io.tmpdir") + File.separator + "matrix-discord-bridge");
 
     public MatrixDiscordBridge(String configDirectory) throws IOException, KeyNotFoundException {
         super(configDirectory);
         this.logger = LoggerFactory.getLogger("MatrixDiscordBridge");
 
+        this.metrics = new MetricsRegistry(); // First, so everything else can register its metrics
+        this.roomIndex = new RoomIndex(this);
+        this.mediaClient = new MatrixMediaClient(this);
+        this.eventRedactor = new MatrixEventRedactor(this);
+        this.eventEditor = new MatrixEventEditor(this);
+        this.avatarQueue = new AvatarQueue(this);
         this.databaseManagement = new DatabaseManagement(this);
         this.connector = new BridgingConnector(this);
+        this.initialSyncManager = new InitialSyncManager(this);
 
         this.commandHandler = new CommandHandler(this);
         this.presenceHandler = new PresenceHandler(this);
@@ -72,13 +93,59 @@ public class MatrixDiscordBridge extends MatrixBridge {
         this.userEventsHandler = new UserEventsHandler(this);
 
         this.emojiManager = new EmojiManager(this);
-        this.webhookManager = new WebhookManager(this);
+        this.webhookManager = new WebhookManager(this, new File(configDirectory + File.separator + "webhooks.log"));
+        this.mentionIndex = new MentionIndex();
+
+        this.loadDiscordConfig(configDirectory);
+
+        var cacheConfig = this.discordConfig.getCache();
+        this.mediaCache = new MediaCache(this, new File(configDirectory + File.separator + cacheConfig.getDirectory()),
+                cacheConfig.getMemorySize() * 1024L * 1024L, cacheConfig.getDiskSize() * 1024L * 1024L, cacheConfig.getMaxMappings());
+        this.membershipEngine = new MembershipEngine(this, this.discordConfig.getSync().getMembershipWorkers());
+        this.memberSnapshots = new MemberSnapshots(this, new File(configDirectory + File.separator + "member-snapshots"));
+        this.messageIdStore = new MessageIdStore(this, new File(configDirectory + File.separator + "message-ids.log"), this.discordConfig.getMessages().getRetentionDays());
+        this.puppetProvisioner = new PuppetProvisioner(this, this.discordConfig.getSync().isLazyPuppets(), this.discordConfig.getSync().getFillerDelay());
+
+        this.matrixToDiscordExecutor = new OrderedTaskExecutor("MatrixToDiscordWorker", this.discordConfig.getPipeline().getMatrixWorkers(), this.logger);
+        this.discordToMatrixExecutor = new OrderedTaskExecutor("DiscordToMatrixWorker", this.discordConfig.getPipeline().getDiscordWorkers(),
+                this.discordConfig.getPipeline().getDiscordQueueCapacity(), this.getOverflowPolicy(this.discordConfig.getPipeline().getDiscordOverflowPolicy()), this.logger);
 
-        if(!tmpDir.exists()) {
-            tmpDir.mkdirs();
+        this.registerMetrics();
+    }
+
+    private OrderedTaskExecutor.OverflowPolicy getOverflowPolicy(String name) {
+        try {
+            return OrderedTaskExecutor.OverflowPolicy.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            this.logger.warn("Unknown overflow policy \"" + name + "\" in the config, using drop_newest.");
+            return OrderedTaskExecutor.OverflowPolicy.DROP_NEWEST;
         }
+    }
 
-        this.loadDiscordConfig(configDirectory);
+    private void registerMetrics() {
+        this.matrixToDiscordTimer = this.metrics.timer("message_duration_seconds", "Time spent bridging a message, by direction.", "direction", "matrix_to_discord");
+
+        this.registerExecutorMetrics(this.matrixToDiscordExecutor, "matrix_to_discord");
+        this.registerExecutorMetrics(this.discordToMatrixExecutor, "discord_to_matrix");
+
+        this.metrics.gauge("queue_depth", "Amount of work waiting in each queue.", this.presenceHandler::getPendingCount, "queue", "presence");
+        this.metrics.gauge("queue_depth", "Amount of work waiting in each queue.", this.avatarQueue::getPendingCount, "queue", "avatars");
+        this.metrics.gauge("queue_depth", "Amount of work waiting in each queue.", this.puppetProvisioner::getPendingCount, "queue", "puppets");
+        this.metrics.gauge("queue_depth", "Amount of work waiting in each queue.", this.databaseManagement::getPendingCount, "queue", "database");
+
+        this.metrics.functionCounter("presence_updates_total", "Presence updates, by if they were sent to Matrix or suppressed.", this.presenceHandler::getSentCount, "result", "sent");
+        this.metrics.functionCounter("presence_updates_total", "Presence updates, by if they were sent to Matrix or suppressed.", this.presenceHandler::getSuppressedCount, "result", "suppressed");
+
+        this.metrics.functionCounter("database_field_updates_total", "Changes to the data of rooms and users.", this.databaseManagement::getFieldUpdateCount);
+        this.metrics.functionCounter("database_writes_total", "Rooms and users written to the database.", this.databaseManagement::getWriteCount);
+
+        this.metrics.gauge("message_id_mappings", "Bridged messages whose IDs are remembered.", this.messageIdStore::size);
+    }
+
+    private void registerExecutorMetrics(OrderedTaskExecutor executor, String queue) {
+        this.metrics.gauge("queue_depth", "Amount of work waiting in each queue.", executor::getQueueDepth, "queue", queue);
+        this.metrics.functionCounter("queue_processed_total", "Tasks processed by each message queue.", executor::getProcessedCount, "queue", queue);
+        this.metrics.functionCounter("queue_dropped_total", "Tasks dropped by each message queue because it was full.", executor::getDroppedCount, "queue", queue);
     }
 
     public static void main(String[] args) throws IOException, KeyNotFoundException {
@@ -118,6 +185,12 @@ public class MatrixDiscordBridge extends MatrixBridge {
                     .buildBlocking();
 
             this.presenceHandler.startUpdating();
+            MatrixRedactionAdvice.setBridge(this); // Redactions can be bridged once Discord is connected
+
+            if(this.discordConfig.getMetrics().isEnabled()) {
+                MetricsController.setRegistry(this.metrics);
+                this.logger.info("Serving metrics at /metrics on the appservice's web server");
+            }
         } catch (LoginException e) {
             this.logger.error("FAILED TO LOG IN TO DISCORD!");
             this.logger.error("LoginException: " + e.getMessage());
@@ -131,16 +204,29 @@ public class MatrixDiscordBridge extends MatrixBridge {
 
     @Override
     protected void onStop() {
+        MetricsController.setRegistry(null);
+        MatrixRedactionAdvice.setBridge(null);
         this.presenceHandler.stopUpdating();
+        this.matrixToDiscordExecutor.shutdown(5000);
+        this.discordToMatrixExecutor.shutdown(5000);
+        this.webhookManager.shutdown();
+        this.membershipEngine.shutdown();
+        this.puppetProvisioner.shutdown();
+        this.avatarQueue.shutdown();
+        this.messageIdStore.close();
+        this.mediaCache.shutdown();
+        this.jda.getGuilds().forEach(this.initialSyncManager::saveSnapshot); // Include members that were set up while running
+        this.databaseManagement.shutdown(); // Write the changes that are still pending
         this.jda.shutdown();
     }
 
     @Override
     protected CreateRoomRequest onRoomAliasQueried(String alias) {
-        var roomId = alias.split(":")[0].split("_")[1];
-        this.logger.info("Received alias query: " + alias + ", extracted roomId: " + roomId);
+        var channelId = this.roomIndex.getChannelIdForAlias(io.github.jython234.matrix.bridges.discord.Util.getAliasNameFromRoomAlias(alias));
+        var roomId = Long.toString(channelId);
+        this.logger.info("Received alias query: " + alias + ", resolved to channel: " + channelId);
 
-        if(this.getDatabase().roomExists(roomId)) {
+        if(channelId != -1 && this.getDatabase().roomExists(roomId)) {
             try {
                 return this.connector.createNewMatrixRoom(alias, roomId);
             } catch (IOException e) {
@@ -157,7 +243,13 @@ public class MatrixDiscordBridge extends MatrixBridge {
 
     @Override
     protected void onRoomAliasCreated(String alias, String id) {
-        var roomId = alias.split(":")[0].split("_")[1];
+        var channelId = this.roomIndex.getChannelIdForAlias(io.github.jython234.matrix.bridges.discord.Util.getAliasNameFromRoomAlias(alias));
+        if(channelId == -1) {
+            this.logger.warn("A room was created for the alias " + alias + ", but it doesn't belong to a known channel.");
+            return;
+        }
+
+        var roomId = Long.toString(channelId);
         this.logger.info("A bridged room, " + alias +", was created!");
 
         try {
@@ -175,13 +267,44 @@ public class MatrixDiscordBridge extends MatrixBridge {
             return; // We don't want message echo from our own bots
         }
 
-        try {
-            this.messageEventsHandler.bridgeMatrixToDiscord(event);
-        } catch (IOException e) {
-            this.logger.warn("Error while processing Matrix message");
-            this.logger.error("IOException: " + e.getMessage());
-            e.printStackTrace();
+        // Send it in the background so the homeserver's transaction isn't held up by Discord, messages in the same room stay in order
+        this.matrixToDiscordExecutor.submit(event.roomId, () -> {
+            var start = System.nanoTime();
+            try {
+                this.messageEventsHandler.bridgeMatrixToDiscord(event);
+            } catch (IOException e) {
+                this.metrics.recordError(e);
+                this.logger.warn("Error while processing Matrix message");
+                this.logger.error("IOException: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                this.matrixToDiscordTimer.recordSince(start);
+            }
+        });
+    }
+
+    /**
+     * Called by {@link MatrixRedactionAdvice} for every redaction in a transaction from the homeserver.
+     * @param roomId The ID of the room the redacted event is in.
+     * @param sender The user that redacted the event.
+     * @param redacts The ID of the redacted event.
+     */
+    void onRedactionEvent(String roomId, String sender, String redacts) {
+        if(sender.startsWith("@!discord_") || sender.startsWith("@" + this.getAppservice().getRegistration().getSenderLocalpart())) {
+            return; // Our own redactions, for messages deleted on Discord
         }
+
+        // Queued with the room's messages, so a message is always sent to Discord before it's deleted
+        this.matrixToDiscordExecutor.submit(roomId, () -> {
+            try {
+                this.messageEventsHandler.bridgeMatrixRedaction(roomId, redacts);
+            } catch (IOException e) {
+                this.metrics.recordError(e);
+                this.logger.warn("Error while processing Matrix redaction");
+                this.logger.error("IOException: " + e.getMessage());
+                e.printStackTrace();
+            }
+        });
     }
 
     @MatrixEventHandler
@@ -200,34 +323,39 @@ public class MatrixDiscordBridge extends MatrixBridge {
         }
     }
 
-    public void setMatrixAvatarFromDiscord(MatrixUserClient userClient, User discordUser) throws IOException {
+    /**
+     * Sets the Matrix avatar of a Discord user's puppet to their Discord avatar.
+     * @param userClient The client of the puppet.
+     * @param discordUser The Discord user.
+     * @return If the avatar was set.
+     * @throws IOException If there was an error while downloading the avatar.
+     */
+    public boolean setMatrixAvatarFromDiscord(MatrixUserClient userClient, User discordUser) throws IOException {
         try {
-            var avatarFile = new File(this.tmpDir + File.separator + discordUser.getAvatarId() + ".png");
-
-            FileUtils.copyURLToFile(new URL(discordUser.getAvatarUrl()), avatarFile); // Download the avatar
-
-            var mxcURL = this.getClientManager().uploadMatrixFromFile(avatarFile.getPath()); // Upload it to matrix
+            var mxcURL = this.mediaCache.uploadFromUrl(discordUser.getAvatarUrl(), discordUser.getAvatarId() + ".png"); // Upload it to matrix, unless it already was
             userClient.setAvatarURL(mxcURL); // Set the URL
-
-            avatarFile.delete(); // Delete it as we don't need it anymore
+            return true;
         } catch (MalformedURLException e) {
             this.logger.warn("MalformedURLException while uploading avatar file for discord user: " + discordUser.getName());
             e.printStackTrace();
         } catch (MatrixNetworkException e) {
+            this.logger.warn("Failed to set avatar for Discord user: " + discordUser.getName());
+            this.logger.error("MatrixNetworkException: " + e.getMessage());
             e.printStackTrace();
         }
+        return false;
     }
 
     public String getUserIdForDiscordUser(User discordUser) {
-        return "@" + MatrixDiscordBridge.USER_PREFIX + discordUser.getId() + ":" + this.getConfig().getMatrixDomain();
+        return this.getUserIdForDiscordId(discordUser.getId());
     }
 
-    public Logger getLogger() {
-        return this.logger;
+    public String getUserIdForDiscordId(String discordId) {
+        return "@" + MatrixDiscordBridge.USER_PREFIX + discordId + ":" + this.getConfig().getMatrixDomain();
     }
 
-    public File getTmpDir() {
-        return this.tmpDir;
+    public Logger getLogger() {
+        return this.logger;
     }
 
     public DiscordBridgeConfig getDiscordConfig() {
@@ -238,10 +366,62 @@ public class MatrixDiscordBridge extends MatrixBridge {
         return this.jda;
     }
 
+    public OrderedTaskExecutor getMatrixToDiscordExecutor() {
+        return this.matrixToDiscordExecutor;
+    }
+
+    public OrderedTaskExecutor getDiscordToMatrixExecutor() {
+        return this.discordToMatrixExecutor;
+    }
+
     public BridgingConnector getConnector() {
         return this.connector;
     }
 
+    public RoomIndex getRoomIndex() {
+        return this.roomIndex;
+    }
+
+    public MatrixMediaClient getMediaClient() {
+        return this.mediaClient;
+    }
+
+    public MediaCache getMediaCache() {
+        return this.mediaCache;
+    }
+
+    public MembershipEngine getMembershipEngine() {
+        return this.membershipEngine;
+    }
+
+    public PuppetProvisioner getPuppetProvisioner() {
+        return this.puppetProvisioner;
+    }
+
+    public MemberSnapshots getMemberSnapshots() {
+        return this.memberSnapshots;
+    }
+
+    public AvatarQueue getAvatarQueue() {
+        return this.avatarQueue;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return this.metrics;
+    }
+
+    public MessageIdStore getMessageIdStore() {
+        return this.messageIdStore;
+    }
+
+    public MatrixEventRedactor getEventRedactor() {
+        return this.eventRedactor;
+    }
+
+    public MatrixEventEditor getEventEditor() {
+        return this.eventEditor;
+    }
+
     public DatabaseManagement getDbManagement() {
         return this.databaseManagement;
     }
@@ -269,4 +449,8 @@ public class MatrixDiscordBridge extends MatrixBridge {
     public EmojiManager getEmojiManager() {
         return this.emojiManager;
     }
-}
+
+    public MentionIndex getMentionIndex() {
+        return this.mentionIndex;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.github.jython234.matrix.appservice.event.room.message.MessageContent;
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Edits Matrix messages by sending an <code>m.replace</code> event, used to bridge
+ * messages that were edited on Discord.
+ *
+ * Clients that don't support edits show the fallback body, which is the new text prefixed with "* ".
+ *
+ * @author jython234
+ */
+public class MatrixEventEditor {
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private MatrixDiscordBridge bridge;
+    private final AtomicLong transactionCounter = new AtomicLong(0);
+
+    MatrixEventEditor(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Replaces the content of a text message.
+     * @param roomId The ID of the room the message is in.
+     * @param eventId The ID of the message event to replace.
+     * @param userId The Matrix user to send the edit as, which must be the user that sent the message.
+     * @param content The new content of the message.
+     * @throws IOException If there was an error while connecting.
+     * @throws MatrixNetworkException If the homeserver refused the edit.
+     */
+    public void edit(String roomId, String eventId, String userId, MessageContent content) throws IOException, MatrixNetworkException {
+        var newContent = toJson(content, "");
+        var editContent = toJson(content, "* ");
+        editContent.set("m.new_content", newContent);
+        editContent.putObject("m.relates_to").put("rel_type", "m.replace").put("event_id", eventId);
+
+        var txnId = "discord-edit-" + System.currentTimeMillis() + "-" + this.transactionCounter.incrementAndGet();
+        var url = new URL(this.bridge.getConfig().getPublicServerURL() + "/_matrix/client/r0/rooms/" + encode(roomId)
+                + "/send/m.room.message/" + txnId + "?user_id=" + encode(userId));
+        var connection = (HttpURLConnection) url.openConnection();
+
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", "Bearer " + this.bridge.getAppservice().getRegistration().getAsToken());
+        connection.setRequestProperty("Content-Type", "application/json");
+
+        try(var out = connection.getOutputStream()) {
+            out.write(JSON.writeValueAsBytes(editContent));
+        }
+
+        if(connection.getResponseCode() != 200) {
+            throw new MatrixNetworkException("Edit of " + eventId + " failed with status " + connection.getResponseCode() + ": " + connection.getResponseMessage());
+        }
+        connection.getInputStream().close();
+    }
+
+    private static ObjectNode toJson(MessageContent content, String prefix) {
+        var json = JSON.createObjectNode();
+        json.put("msgtype", "m.text");
+        json.put("body", prefix + content.body);
+
+        if(content instanceof MessageContent.FormattedTextMessageContent) {
+            var formatted = (MessageContent.FormattedTextMessageContent) content;
+            json.put("format", formatted.format);
+            json.put("formatted_body", prefix + formatted.formattedBody);
+        }
+        return json;
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20");
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Redacts Matrix events, used to remove messages on Matrix that were deleted on Discord.
+ *
+ * @author jython234
+ */
+public class MatrixEventRedactor {
+    private MatrixDiscordBridge bridge;
+    private final AtomicLong transactionCounter = new AtomicLong(0);
+
+    MatrixEventRedactor(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Redacts an event.
+     * @param roomId The ID of the room the event is in.
+     * @param eventId The ID of the event.
+     * @param userId The Matrix user to redact the event as, which should be the user that sent it.
+     * @throws IOException If there was an error while connecting.
+     * @throws MatrixNetworkException If the homeserver refused to redact the event.
+     */
+    public void redact(String roomId, String eventId, String userId) throws IOException, MatrixNetworkException {
+        var txnId = "discord-redact-" + System.currentTimeMillis() + "-" + this.transactionCounter.incrementAndGet();
+        var url = new URL(this.bridge.getConfig().getPublicServerURL() + "/_matrix/client/r0/rooms/" + encode(roomId)
+                + "/redact/" + encode(eventId) + "/" + txnId + "?user_id=" + encode(userId));
+        var connection = (HttpURLConnection) url.openConnection();
+
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", "Bearer " + this.bridge.getAppservice().getRegistration().getAsToken());
+        connection.setRequestProperty("Content-Type", "application/json");
+
+        try(var out = connection.getOutputStream()) {
+            out.write("{}".getBytes(StandardCharsets.UTF_8));
+        }
+
+        if(connection.getResponseCode() != 200) {
+            throw new MatrixNetworkException("Redaction of " + eventId + " failed with status " + connection.getResponseCode() + ": " + connection.getResponseMessage());
+        }
+        connection.getInputStream().close();
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20");
+    }
+}
@@ -0,0 +1,146 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Transfers media to and from the Matrix content repository using streams, so
+ * media being bridged doesn't have to be written to a temporary file first.
+ *
+ * @author jython234
+ */
+public class MatrixMediaClient {
+    /**
+     * Amount of bytes read from the start of a stream to detect its content type.
+     */
+    public static final int PEEK_SIZE = 8192;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private MatrixDiscordBridge bridge;
+
+    MatrixMediaClient(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Uploads media to the Matrix content repository, streaming it straight from the input stream.
+     * @param in The stream to read the media from. It is not closed by this method.
+     * @param contentType The MIME type of the media.
+     * @param filename The filename of the media.
+     * @param size The size of the media in bytes, or -1 if it's unknown.
+     * @return The mxc:// URL of the uploaded media.
+     * @throws IOException If there was an error while reading the stream.
+     * @throws MatrixNetworkException If the homeserver rejected the upload.
+     */
+    public String upload(InputStream in, String contentType, String filename, long size) throws IOException, MatrixNetworkException {
+        var url = new URL(this.bridge.getConfig().getPublicServerURL() + "/_matrix/media/r0/upload?filename=" + URLEncoder.encode(filename, StandardCharsets.UTF_8.name()));
+        var connection = (HttpURLConnection) url.openConnection();
+
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Authorization", "Bearer " + this.bridge.getAppservice().getRegistration().getAsToken());
+        connection.setRequestProperty("Content-Type", contentType);
+        if(size >= 0) {
+            connection.setFixedLengthStreamingMode(size);
+        } else {
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+
+        try(var out = connection.getOutputStream()) {
+            in.transferTo(out);
+        }
+
+        if(connection.getResponseCode() != 200) {
+            throw new MatrixNetworkException("Media upload failed with status " + connection.getResponseCode() + ": " + connection.getResponseMessage());
+        }
+
+        try(var responseIn = connection.getInputStream()) {
+            var contentUri = JSON.readTree(responseIn).path("content_uri");
+            if(!contentUri.isTextual()) {
+                throw new MatrixNetworkException("Media upload response did not contain a content_uri!");
+            }
+            return contentUri.textValue();
+        }
+    }
+
+    /**
+     * Opens a stream to download media from the Matrix content repository.
+     * @param mxcUrl The mxc:// URL of the media.
+     * @return A stream of the media, which must be closed by the caller.
+     * @throws IOException If there was an error while connecting.
+     * @throws MatrixNetworkException If the homeserver couldn't provide the media.
+     */
+    public InputStream download(String mxcUrl) throws IOException, MatrixNetworkException {
+        var url = new URL(this.bridge.getConfig().getPublicServerURL() + "/_matrix/media/r0/download/" + mxcUrl.replace("mxc://", ""));
+        var connection = (HttpURLConnection) url.openConnection();
+
+        if(connection.getResponseCode() != 200) {
+            connection.disconnect();
+            throw new MatrixNetworkException("Media download of " + mxcUrl + " failed with status " + connection.getResponseCode());
+        }
+        return connection.getInputStream();
+    }
+
+    /**
+     * Reads the start of a stream, so its content type can be detected without reading the stream twice.
+     * @param in The stream to peek.
+     * @return The peeked bytes, and a stream that returns the whole content again.
+     * @throws IOException If there was an error while reading the stream.
+     */
+    public static Peeked peek(InputStream in) throws IOException {
+        var buffer = new byte[PEEK_SIZE];
+        var length = in.readNBytes(buffer, 0, PEEK_SIZE);
+
+        return new Peeked(buffer, length, new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), in));
+    }
+
+    /**
+     * The start of a stream that has been peeked, along with a stream of the complete content.
+     */
+    public static class Peeked {
+        private final byte[] header;
+        private final int length;
+        private final InputStream stream;
+
+        Peeked(byte[] header, int length, InputStream stream) {
+            this.header = header;
+            this.length = length;
+            this.stream = stream;
+        }
+
+        /**
+         * @return A new stream over the peeked bytes only.
+         */
+        public InputStream headerStream() {
+            return new ByteArrayInputStream(this.header, 0, this.length);
+        }
+
+        /**
+         * @return The MIME type detected from the peeked bytes, or null if it couldn't be detected.
+         * @throws IOException Never, as the peeked bytes are in memory.
+         */
+        public String guessContentType() throws IOException {
+            return URLConnection.guessContentTypeFromStream(this.headerStream());
+        }
+
+        /**
+         * @return The stream of the complete content, including the peeked bytes.
+         */
+        public InputStream getStream() {
+            return this.stream;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.RequestBodyAdviceAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Picks the <code>m.room.redaction</code> events out of the transactions the homeserver pushes to the
+ * appservice, as the appservice library doesn't pass redactions on to event handlers. The body is read
+ * before the appservice's controller gets it, and handed on unchanged.
+ *
+ * Spring creates the advice itself, as it is registered through "META-INF/spring.factories", so the bridge
+ * hands itself over with {@link #setBridge(MatrixDiscordBridge)}. Until then bodies are passed on untouched.
+ *
+ * @author jython234
+ */
+@ControllerAdvice
+public class MatrixRedactionAdvice extends RequestBodyAdviceAdapter {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final String REDACTION_TYPE = "m.room.redaction";
+
+    private static volatile MatrixDiscordBridge bridge;
+
+    static void setBridge(MatrixDiscordBridge bridge) {
+        MatrixRedactionAdvice.bridge = bridge;
+    }
+
+    @Override
+    public boolean supports(MethodParameter methodParameter, Type targetType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return MatrixRedactionAdvice.bridge != null;
+    }
+
+    @Override
+    public HttpInputMessage beforeBodyRead(HttpInputMessage inputMessage, MethodParameter parameter, Type targetType,
+                                           Class<? extends HttpMessageConverter<?>> converterType) throws IOException {
+        var bridge = MatrixRedactionAdvice.bridge;
+        if(bridge == null) return inputMessage;
+
+        byte[] body;
+        try(var in = inputMessage.getBody()) {
+            body = in.readAllBytes();
+        }
+
+        if(new String(body, StandardCharsets.UTF_8).contains(REDACTION_TYPE)) { // Don't parse transactions without redactions
+            try {
+                for(var event : JSON.readTree(body).path("events")) {
+                    if(!REDACTION_TYPE.equals(event.path("type").asText())) continue;
+
+                    var roomId = event.path("room_id").asText();
+                    var sender = event.path("sender").asText();
+                    var redacts = event.path("redacts").asText();
+                    if(!roomId.isEmpty() && !redacts.isEmpty()) {
+                        bridge.onRedactionEvent(roomId, sender, redacts);
+                    }
+                }
+            } catch (IOException e) {
+                // Not JSON, so not a transaction, leave it to the controller
+            }
+        }
+
+        return new HttpInputMessage() {
+            @Override
+            public InputStream getBody() {
+                return new ByteArrayInputStream(body);
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return inputMessage.getHeaders();
+            }
+        };
+    }
+}
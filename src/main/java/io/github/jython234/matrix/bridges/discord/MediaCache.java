@@ -0,0 +1,327 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+import net.dv8tion.jda.core.entities.Icon;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches media that is bridged, so the same bytes aren't transferred over and over.
+ *
+ * Source URLs (like Discord avatar URLs) and SHA-256 content hashes are mapped to the mxc:// URL
+ * they were uploaded to. The mappings are kept in an LRU cache bounded by the amount of entries, which is
+ * saved to the database as a single entry every minute and when the bridge stops, so it survives restarts.
+ * The bytes of Matrix media downloaded for Discord (like webhook avatars) are kept in a size-bounded
+ * LRU cache in memory, backed by a size-bounded LRU cache on disk.
+ *
+ * @author jython234
+ */
+public class MediaCache {
+    /**
+     * Media larger than this is streamed instead of being buffered and hashed.
+     */
+    public static final int MAX_BUFFERED_SIZE = 8 * 1024 * 1024;
+
+    private static final String INDEX_KEY = "media-index";
+    private static final String URL_KEY_PREFIX = "url-";
+    private static final String HASH_KEY_PREFIX = "sha256-";
+    private static final long SAVE_INTERVAL = 60 * 1000;
+
+    private MatrixDiscordBridge bridge;
+
+    private final File directory;
+    private final long maxMemorySize;
+    private final long maxDiskSize;
+    private final int maxMappings;
+
+    private final LinkedHashMap<String, String> mappings = new LinkedHashMap<>(16, 0.75f, true); // Mapping key -> mxc:// URL, access ordered
+    private boolean mappingsChanged = false;
+    private Thread writerThread;
+
+    private final LinkedHashMap<String, byte[]> memoryCache = new LinkedHashMap<>(16, 0.75f, true); // Access ordered, so it iterates from least recently used
+    private long memorySize = 0;
+    private final AtomicLong diskSize = new AtomicLong(0);
+
+    MediaCache(MatrixDiscordBridge bridge, File directory, long maxMemorySize, long maxDiskSize, int maxMappings) {
+        this.bridge = bridge;
+        this.directory = directory;
+        this.maxMemorySize = maxMemorySize;
+        this.maxDiskSize = maxDiskSize;
+        this.maxMappings = Math.max(1, maxMappings);
+
+        if(!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        var files = directory.listFiles();
+        if(files != null) {
+            for(var file : files) this.diskSize.addAndGet(file.length());
+        }
+
+        this.loadMappings();
+
+        this.writerThread = new Thread(this::writerLoop);
+        this.writerThread.setName("MediaIndexWriterThread");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Gets the mxc:// URL that media from a source URL was uploaded to.
+     * @param url The source URL.
+     * @return The mxc:// URL, or null if it hasn't been uploaded or was evicted.
+     */
+    public String getMxcForUrl(String url) {
+        return this.getMapping(URL_KEY_PREFIX + sha256(url.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void putMxcForUrl(String url, String mxcUrl) {
+        this.putMapping(URL_KEY_PREFIX + sha256(url.getBytes(StandardCharsets.UTF_8)), mxcUrl);
+    }
+
+    /**
+     * Uploads media from a source URL to Matrix, unless the URL or the same content has already been uploaded.
+     * @param url The source URL.
+     * @param filename The filename to upload the media as.
+     * @return The mxc:// URL of the media.
+     * @throws IOException If there was an error while downloading the media.
+     * @throws MatrixNetworkException If the upload failed.
+     */
+    public String uploadFromUrl(String url, String filename) throws IOException, MatrixNetworkException {
+        var mxcUrl = this.getMxcForUrl(url);
+        if(mxcUrl != null) return mxcUrl;
+
+        var connection = new URL(url).openConnection();
+        connection.setRequestProperty("User-Agent", MatrixDiscordBridge.SOFTWARE + "/" + MatrixDiscordBridge.SOFTWARE_VERSION); // Discord's CDN rejects the default Java user agent
+
+        byte[] data;
+        try(var in = connection.getInputStream()) {
+            data = in.readAllBytes();
+        }
+
+        mxcUrl = this.uploadBytes(data, connection.getContentType(), filename);
+        this.putMxcForUrl(url, mxcUrl);
+        return mxcUrl;
+    }
+
+    /**
+     * Uploads media to Matrix, unless the same content has already been uploaded.
+     * @param data The media.
+     * @param contentType The MIME type of the media.
+     * @param filename The filename to upload the media as.
+     * @return The mxc:// URL of the media.
+     * @throws IOException If there was an error while uploading.
+     * @throws MatrixNetworkException If the upload failed.
+     */
+    public String uploadBytes(byte[] data, String contentType, String filename) throws IOException, MatrixNetworkException {
+        var hashKey = HASH_KEY_PREFIX + sha256(data);
+
+        var mxcUrl = this.getMapping(hashKey);
+        if(mxcUrl == null) {
+            mxcUrl = this.bridge.getMediaClient().upload(new ByteArrayInputStream(data), contentType == null ? "application/octet-stream" : contentType, filename, data.length);
+            this.putMapping(hashKey, mxcUrl);
+        }
+        return mxcUrl;
+    }
+
+    private String getMapping(String key) {
+        synchronized (this.mappings) {
+            return this.mappings.get(key);
+        }
+    }
+
+    private void putMapping(String key, String mxcUrl) {
+        synchronized (this.mappings) {
+            this.mappings.put(key, mxcUrl);
+
+            var iterator = this.mappings.values().iterator();
+            while(this.mappings.size() > this.maxMappings && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove(); // Least recently used first
+            }
+            this.mappingsChanged = true;
+        }
+    }
+
+    private void loadMappings() {
+        try {
+            var index = (String) this.bridge.getDatabase().getExtraData(INDEX_KEY);
+            if(index == null) return;
+
+            synchronized (this.mappings) {
+                for(var line : index.split("\n")) { // Saved least recently used first, so the order is restored
+                    var separator = line.indexOf('\t');
+                    if(separator > 0) this.mappings.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to load the media index, media will be uploaded again.");
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void saveMappings() {
+        String index;
+        synchronized (this.mappings) {
+            if(!this.mappingsChanged) return;
+
+            var builder = new StringBuilder(this.mappings.size() * 100);
+            this.mappings.forEach((key, mxcUrl) -> builder.append(key).append('\t').append(mxcUrl).append('\n'));
+            index = builder.toString();
+            this.mappingsChanged = false;
+        }
+
+        try {
+            this.bridge.getDatabase().putExtraData(INDEX_KEY, index);
+        } catch (IOException e) {
+            synchronized (this.mappings) {
+                this.mappingsChanged = true; // Try again next time
+            }
+            this.bridge.getLogger().warn("Failed to save the media index");
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void writerLoop() {
+        while(true) {
+            try {
+                Thread.sleep(SAVE_INTERVAL);
+            } catch (InterruptedException e) {
+                return; // Interrupted, that means the bridge is stopping and will save it itself
+            }
+            this.saveMappings();
+        }
+    }
+
+    /**
+     * Stops saving the media index in the background and saves it one last time.
+     */
+    void shutdown() {
+        this.writerThread.interrupt();
+        this.saveMappings();
+    }
+
+    /**
+     * Gets the bytes of Matrix media, downloading them only if they aren't cached.
+     * @param mxcUrl The mxc:// URL of the media.
+     * @return The media.
+     * @throws IOException If there was an error while downloading or reading the cache.
+     * @throws MatrixNetworkException If the download failed.
+     */
+    public byte[] getBytes(String mxcUrl) throws IOException, MatrixNetworkException {
+        synchronized (this.memoryCache) {
+            var data = this.memoryCache.get(mxcUrl);
+            if(data != null) return data;
+        }
+
+        var file = this.getCacheFile(mxcUrl);
+        if(file.exists()) {
+            var data = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis()); // Mark as recently used
+            this.putInMemory(mxcUrl, data);
+            return data;
+        }
+
+        byte[] data;
+        try(InputStream in = this.bridge.getMediaClient().download(mxcUrl)) {
+            data = in.readAllBytes();
+        }
+        this.putBytes(mxcUrl, data);
+        return data;
+    }
+
+    /**
+     * Gets a Discord Icon for Matrix media, like an avatar.
+     * @param mxcUrl The mxc:// URL of the media.
+     * @return The Icon.
+     * @throws IOException If there was an error while downloading or reading the cache.
+     * @throws MatrixNetworkException If the download failed.
+     */
+    public Icon getIcon(String mxcUrl) throws IOException, MatrixNetworkException {
+        return Icon.from(this.getBytes(mxcUrl));
+    }
+
+    private void putBytes(String mxcUrl, byte[] data) {
+        if(data.length > MAX_BUFFERED_SIZE) return;
+
+        this.putInMemory(mxcUrl, data);
+
+        var file = this.getCacheFile(mxcUrl);
+        if(file.exists()) return;
+        try {
+            Files.write(file.toPath(), data);
+            if(this.diskSize.addAndGet(data.length) > this.maxDiskSize) {
+                this.trimDisk();
+            }
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to write media cache file for " + mxcUrl);
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+        }
+    }
+
+    private void putInMemory(String mxcUrl, byte[] data) {
+        synchronized (this.memoryCache) {
+            if(this.memoryCache.put(mxcUrl, data) == null) {
+                this.memorySize += data.length;
+            }
+
+            var iterator = this.memoryCache.values().iterator();
+            while(this.memorySize > this.maxMemorySize && iterator.hasNext()) {
+                this.memorySize -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized void trimDisk() {
+        var files = this.directory.listFiles();
+        if(files == null) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified)); // Oldest first
+        for(var file : files) {
+            if(this.diskSize.get() <= this.maxDiskSize) break;
+
+            var length = file.length();
+            if(file.delete()) {
+                this.diskSize.addAndGet(-length);
+            }
+        }
+    }
+
+    private File getCacheFile(String mxcUrl) {
+        return new File(this.directory, sha256(mxcUrl.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Hashes data with SHA-256.
+     * @param data The data to hash.
+     * @return The hash, as a lowercase hex string.
+     */
+    public static String sha256(byte[] data) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(data);
+
+            var builder = new StringBuilder(digest.length * 2);
+            for(var b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available!", e); // Every JRE is required to support SHA-256
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import net.dv8tion.jda.core.entities.Member;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Stores a compact snapshot of the members of each guild that have been set up on Matrix, so
+ * the initial sync only has to set up members that joined or changed since the bridge last ran.
+ *
+ * Each snapshot is a file containing, for each member, their user ID and 64-bit hashes of their
+ * username and avatar ID. Snapshots are kept in memory as sorted primitive arrays.
+ *
+ * @author jython234
+ */
+public class MemberSnapshots {
+    private static final int FORMAT_VERSION = 2; // Version 1 stored 32-bit hashes
+
+    private MatrixDiscordBridge bridge;
+    private final File directory;
+
+    MemberSnapshots(MatrixDiscordBridge bridge, File directory) {
+        this.bridge = bridge;
+        this.directory = directory;
+
+        if(!directory.exists()) {
+            directory.mkdirs();
+        }
+    }
+
+    /**
+     * Loads the snapshot of a guild.
+     * @param guildId The ID of the guild.
+     * @return The snapshot, which is empty if there isn't one or it couldn't be read.
+     */
+    Snapshot load(long guildId) {
+        var file = this.getFile(guildId);
+        if(!file.exists()) return new Snapshot(new long[0], new long[0], new long[0]);
+
+        try(var in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != FORMAT_VERSION) {
+                return new Snapshot(new long[0], new long[0], new long[0]);
+            }
+
+            var count = in.readInt();
+            var ids = new long[count];
+            var nameHashes = new long[count];
+            var avatarHashes = new long[count];
+            for(int i = 0; i < count; i++) {
+                ids[i] = in.readLong();
+                nameHashes[i] = in.readLong();
+                avatarHashes[i] = in.readLong();
+            }
+            return new Snapshot(ids, nameHashes, avatarHashes);
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to read member snapshot for guild " + guildId + ", doing a full sync.");
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            return new Snapshot(new long[0], new long[0], new long[0]);
+        }
+    }
+
+    /**
+     * Saves the snapshot of a guild.
+     * @param guildId The ID of the guild.
+     * @param members The members that have been set up on Matrix successfully.
+     */
+    void save(long guildId, Collection<Member> members) {
+        var sorted = members.stream().sorted((a, b) -> Long.compare(a.getUser().getIdLong(), b.getUser().getIdLong())).toArray(Member[]::new);
+
+        var file = this.getFile(guildId);
+        var tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            try(var out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(sorted.length);
+                for(var member : sorted) {
+                    out.writeLong(member.getUser().getIdLong());
+                    out.writeLong(nameHash(member));
+                    out.writeLong(avatarHash(member));
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to save member snapshot for guild " + guildId);
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private File getFile(long guildId) {
+        return new File(this.directory, guildId + ".bin");
+    }
+
+    private static long nameHash(Member member) {
+        return hash(member.getUser().getName());
+    }
+
+    private static long avatarHash(Member member) {
+        return hash(member.getUser().getAvatarId());
+    }
+
+    /**
+     * Hashes a string with 64-bit FNV-1a, so a changed name is very unlikely to be mistaken for an unchanged one.
+     * @return The hash, or 0 if the string is null.
+     */
+    private static long hash(String value) {
+        if(value == null) return 0;
+
+        var hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * The members of a guild as they were when the snapshot was saved.
+     */
+    static class Snapshot {
+        private final long[] ids; // Sorted
+        private final long[] nameHashes;
+        private final long[] avatarHashes;
+
+        Snapshot(long[] ids, long[] nameHashes, long[] avatarHashes) {
+            this.ids = ids;
+            this.nameHashes = nameHashes;
+            this.avatarHashes = avatarHashes;
+        }
+
+        /**
+         * @return If the member is in the snapshot with the same username and avatar.
+         */
+        boolean isUnchanged(Member member) {
+            var index = Arrays.binarySearch(this.ids, member.getUser().getIdLong());
+            return index >= 0 && this.nameHashes[index] == nameHash(member) && this.avatarHashes[index] == avatarHash(member);
+        }
+
+        /**
+         * @return The amount of members in the snapshot that aren't in the given set of user IDs.
+         */
+        int countMissing(Set<Long> userIds) {
+            var missing = 0;
+            for(var id : this.ids) {
+                if(!userIds.contains(id)) missing++;
+            }
+            return missing;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Matrix membership operations (invites, joins, leaves and kicks) for many users at once.
+ *
+ * Operations run in parallel on a bounded pool of workers (the size is set in the "sync" section of the
+ * config). If the homeserver rate limits a request, the operation waits for the time the homeserver asks
+ * for and then tries again.
+ *
+ * @author jython234
+ */
+public class MembershipEngine {
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_RETRY_DELAY = 1000;
+
+    private MatrixDiscordBridge bridge;
+    private final ExecutorService pool;
+
+    MembershipEngine(MatrixDiscordBridge bridge, int workers) {
+        this.bridge = bridge;
+
+        var threadCount = new AtomicInteger(0);
+        this.pool = Executors.newFixedThreadPool(Math.max(1, workers), runnable -> {
+            var thread = new Thread(runnable);
+            thread.setName("MembershipWorker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs a membership operation for each user in the background.
+     * @param description Description of the operation, used in progress messages.
+     * @param userIds The Matrix user IDs to run the operation for.
+     * @param operation The operation.
+     * @return A future that completes once the operation has been run for every user, with the users it failed for.
+     *         Operations that failed are logged, they don't fail the future.
+     */
+    public CompletableFuture<List<String>> run(String description, List<String> userIds, MembershipOperation operation) {
+        if(userIds.isEmpty()) return CompletableFuture.completedFuture(Collections.emptyList());
+
+        this.bridge.getLogger().info(description + ": " + userIds.size() + " users...");
+
+        var done = new AtomicInteger(0);
+        var step = Math.max(1, userIds.size() / 10); // Report progress every 10%
+        List<String> failed = Collections.synchronizedList(new ArrayList<>());
+
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(userIds.size());
+        userIds.forEach(userId -> tasks.add(CompletableFuture.runAsync(() -> {
+            if(!this.runWithRetry(description, userId, operation)) {
+                failed.add(userId);
+            }
+
+            var count = done.incrementAndGet();
+            if(count % step == 0 && count != userIds.size()) {
+                this.bridge.getLogger().info(description + " progress: " + count + "/" + userIds.size() + " users");
+            }
+        }, this.pool)));
+
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            if(failed.isEmpty()) {
+                this.bridge.getLogger().info(description + ": done.");
+            } else {
+                this.bridge.getLogger().warn(description + ": done, failed for " + failed.size() + " users.");
+            }
+            return new ArrayList<>(failed);
+        });
+    }
+
+    /**
+     * @return If the operation succeeded.
+     */
+    private boolean runWithRetry(String description, String userId, MembershipOperation operation) {
+        for(int attempt = 1; ; attempt++) {
+            try {
+                operation.run(userId);
+                return true;
+            } catch (MatrixNetworkException e) {
+                if(!isRateLimited(e) || attempt >= MAX_ATTEMPTS) {
+                    this.bridge.getLogger().warn(description + " failed for user " + userId);
+                    this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
+                    e.printStackTrace();
+                    return false;
+                }
+
+                try {
+                    Thread.sleep(getRetryDelay(e, attempt));
+                } catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            } catch (RuntimeException e) {
+                this.bridge.getLogger().warn(description + " failed for user " + userId);
+                this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stops the workers. Operations that haven't run yet are dropped, unfinished jobs are resumed on the next start.
+     */
+    void shutdown() {
+        this.pool.shutdownNow();
+    }
+
+    private static boolean isRateLimited(MatrixNetworkException e) {
+        return e.getMessage() != null && (e.getMessage().contains("429") || e.getMessage().contains("M_LIMIT_EXCEEDED"));
+    }
+
+    /**
+     * Gets how long to wait before retrying a rate limited request, from the "retry_after_ms" the homeserver
+     * returned. If it isn't available the delay doubles with each attempt.
+     */
+    private static long getRetryDelay(MatrixNetworkException e, int attempt) {
+        var message = e.getMessage();
+        var index = message.indexOf("retry_after_ms");
+        if(index >= 0) {
+            long delay = 0;
+            var digits = 0;
+            for(int i = index + "retry_after_ms".length(); i < message.length(); i++) {
+                var c = message.charAt(i);
+                if(c >= '0' && c <= '9') {
+                    delay = delay * 10 + (c - '0');
+                    digits++;
+                } else if(digits > 0) {
+                    break;
+                }
+            }
+            if(digits > 0) return delay;
+        }
+        return DEFAULT_RETRY_DELAY << (attempt - 1);
+    }
+
+    /**
+     * A membership operation for a single user.
+     */
+    @FunctionalInterface
+    public interface MembershipOperation {
+        void run(String userId) throws MatrixNetworkException;
+    }
+}
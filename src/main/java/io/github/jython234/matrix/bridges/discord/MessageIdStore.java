@@ -0,0 +1,420 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which Matrix events bridged Discord messages became, and which Discord messages
+ * bridged Matrix events became (webhook messages are sent with <code>wait=true</code> so Discord
+ * returns their IDs), so edits and deletions can be bridged as well.
+ *
+ * Mappings are appended to a log file. Indexes from the Discord message ID and from a hash of the Matrix
+ * event ID to the position of the mapping in the log are kept in memory as primitive arrays, and recently used
+ * mappings are cached so they don't have to be read from the log. Once a day the log is compacted, which drops
+ * mappings older than the retention time (the "retentionDays" option in the "messages" section of the config).
+ *
+ * A Discord message can become more than one Matrix event, for example an attachment with a caption, so
+ * each mapping in the log points to the previous one for the same Discord message.
+ *
+ * @author jython234
+ */
+public class MessageIdStore {
+    private static final int CACHE_SIZE = 10000;
+    private static final int HEADER_SIZE = 8 + 8 + 8 + 2; // Timestamp, Discord message ID, previous mapping, event ID length
+    private static final long NONE = -1;
+
+    private MatrixDiscordBridge bridge;
+    private final File file;
+    private final long retention;
+
+    private FileChannel channel;
+    private long end;
+    private long oldest = Long.MAX_VALUE; // Timestamp of the oldest mapping in the log
+
+    private OffsetIndex byDiscordId;
+    private OffsetIndex byEventId;
+
+    private final Map<Long, List<String>> cachedEventIds = createCache(); // Discord message ID -> Matrix event IDs
+    private final Map<String, Long> cachedDiscordIds = createCache(); // Matrix event ID -> Discord message ID
+
+    private final ScheduledExecutorService compactionExecutor;
+
+    MessageIdStore(MatrixDiscordBridge bridge, File file, int retentionDays) throws IOException {
+        this.bridge = bridge;
+        this.file = file;
+        this.retention = TimeUnit.DAYS.toMillis(retentionDays);
+
+        this.load();
+        this.compact();
+
+        this.compactionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable);
+            thread.setName("MessageIdCompactionThread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactionExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                this.compact();
+            } catch (IOException e) {
+                this.bridge.getLogger().warn("Failed to compact the message ID log");
+                this.bridge.getLogger().error("IOException: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, 1, 1, TimeUnit.DAYS);
+    }
+
+    private static <K, V> Map<K, V> createCache() {
+        return new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return this.size() > CACHE_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Remembers that a Discord message and a Matrix event are the same message.
+     * @param discordId The ID of the Discord message.
+     * @param eventId The ID of the Matrix event.
+     */
+    public synchronized void put(long discordId, String eventId) {
+        var previous = this.byDiscordId.get(discordId);
+
+        try {
+            var offset = this.append(System.currentTimeMillis(), discordId, previous, eventId);
+            this.byDiscordId.put(discordId, offset);
+            this.byEventId.put(hash(eventId), offset);
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to store the Matrix event ID of Discord message " + discordId);
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+
+        var cached = this.cachedEventIds.get(discordId);
+        if(cached != null) {
+            cached.add(eventId);
+        } else if(previous == NONE) {
+            // There are no other events for this message, so the cached list is complete
+            var eventIds = new ArrayList<String>(1);
+            eventIds.add(eventId);
+            this.cachedEventIds.put(discordId, eventIds);
+        }
+        this.cachedDiscordIds.put(eventId, discordId);
+    }
+
+    /**
+     * @param discordId The ID of the Discord message.
+     * @return The IDs of the Matrix events the Discord message is, oldest first. Empty if it isn't known.
+     */
+    public synchronized List<String> getEventIds(long discordId) {
+        var cached = this.cachedEventIds.get(discordId);
+        if(cached != null) return new ArrayList<>(cached);
+
+        var eventIds = new ArrayList<String>(1);
+        try {
+            for(var offset = this.byDiscordId.get(discordId); offset != NONE; ) {
+                var record = this.read(offset);
+                eventIds.add(record.eventId);
+                offset = record.previous;
+            }
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to read the Matrix event IDs of Discord message " + discordId);
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+        Collections.reverse(eventIds);
+
+        if(!eventIds.isEmpty()) this.cachedEventIds.put(discordId, new ArrayList<>(eventIds));
+        return eventIds;
+    }
+
+    /**
+     * @param eventId The ID of the Matrix event.
+     * @return The ID of the Discord message the Matrix event is, or -1 if it isn't known.
+     */
+    public synchronized long getDiscordId(String eventId) {
+        var cached = this.cachedDiscordIds.get(eventId);
+        if(cached != null) return cached;
+
+        var offset = this.byEventId.get(hash(eventId));
+        if(offset == NONE) return NONE;
+
+        try {
+            var record = this.read(offset);
+            if(!record.eventId.equals(eventId)) return NONE; // Another event with the same hash
+
+            this.cachedDiscordIds.put(eventId, record.discordId);
+            return record.discordId;
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to read the Discord message ID of Matrix event " + eventId);
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+            return NONE;
+        }
+    }
+
+    /**
+     * @return The amount of mappings in the log.
+     */
+    public synchronized int size() {
+        return this.byEventId.size();
+    }
+
+    /**
+     * Reads the log and builds the indexes. A mapping that was only partly written, because the
+     * bridge stopped while writing it, is cut off.
+     */
+    private void load() throws IOException {
+        this.byDiscordId = new OffsetIndex();
+        this.byEventId = new OffsetIndex();
+        this.oldest = Long.MAX_VALUE;
+
+        long offset = 0;
+        if(this.file.exists()) {
+            try(var in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+                while(true) {
+                    var timestamp = in.readLong();
+                    var discordId = in.readLong();
+                    in.readLong(); // The previous mapping, the index is rebuilt in order anyway
+                    var eventIdBytes = new byte[in.readUnsignedShort()];
+                    in.readFully(eventIdBytes);
+
+                    this.byDiscordId.put(discordId, offset);
+                    this.byEventId.put(hash(new String(eventIdBytes, StandardCharsets.UTF_8)), offset);
+                    this.oldest = Math.min(this.oldest, timestamp);
+
+                    offset += HEADER_SIZE + eventIdBytes.length;
+                }
+            } catch (EOFException e) {
+                // End of the log
+            }
+        }
+
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if(this.channel.size() > offset) {
+            this.bridge.getLogger().warn("Message ID log ends with an incomplete mapping, removing it.");
+            this.channel.truncate(offset);
+        }
+        this.end = offset;
+    }
+
+    /**
+     * Rewrites the log without the mappings older than the retention time, if there are any.
+     */
+    synchronized void compact() throws IOException {
+        var cutoff = System.currentTimeMillis() - this.retention;
+        if(this.oldest >= cutoff) return;
+
+        var start = System.currentTimeMillis();
+        var previousSize = this.byEventId.size();
+
+        var tmpFile = new File(this.file.getPath() + ".tmp");
+        var newByDiscordId = new OffsetIndex();
+        var newByEventId = new OffsetIndex();
+        var newOldest = Long.MAX_VALUE;
+        long newEnd = 0;
+
+        try(var out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for(long offset = 0; offset < this.end; ) {
+                var record = this.read(offset);
+                offset += record.getSize();
+                if(record.timestamp < cutoff) continue;
+
+                var buffer = record.encode(newByDiscordId.get(record.discordId));
+                while(buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+
+                newByDiscordId.put(record.discordId, newEnd);
+                newByEventId.put(hash(record.eventId), newEnd);
+                newOldest = Math.min(newOldest, record.timestamp);
+                newEnd += record.getSize();
+            }
+            out.force(false);
+        }
+
+        this.channel.close();
+        Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        this.byDiscordId = newByDiscordId;
+        this.byEventId = newByEventId;
+        this.oldest = newOldest;
+        this.end = newEnd;
+        this.cachedEventIds.clear();
+        this.cachedDiscordIds.clear();
+
+        this.bridge.getLogger().info("Compacted message ID log, removed " + (previousSize - newByEventId.size()) + " expired mappings in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    private long append(long timestamp, long discordId, long previous, String eventId) throws IOException {
+        var record = new Record(timestamp, discordId, previous, eventId);
+        var buffer = record.encode(previous);
+
+        var offset = this.end;
+        var position = offset;
+        while(buffer.hasRemaining()) {
+            position += this.channel.write(buffer, position);
+        }
+
+        this.end = position;
+        this.oldest = Math.min(this.oldest, timestamp);
+        return offset;
+    }
+
+    private Record read(long offset) throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SIZE);
+        this.readFully(header, offset);
+        header.flip();
+
+        var timestamp = header.getLong();
+        var discordId = header.getLong();
+        var previous = header.getLong();
+        var eventIdBytes = ByteBuffer.allocate(Short.toUnsignedInt(header.getShort()));
+        this.readFully(eventIdBytes, offset + HEADER_SIZE);
+
+        return new Record(timestamp, discordId, previous, new String(eventIdBytes.array(), StandardCharsets.UTF_8));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            var read = this.channel.read(buffer, position);
+            if(read < 0) throw new EOFException("Unexpected end of the message ID log");
+            position += read;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of an event ID, never 0 as that marks an empty slot in the index.
+     */
+    private static long hash(String eventId) {
+        var hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < eventId.length(); i++) {
+            hash ^= eventId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+
+    void close() {
+        this.compactionExecutor.shutdownNow();
+
+        synchronized (this) {
+            try {
+                this.channel.force(false);
+                this.channel.close();
+            } catch (IOException e) {
+                this.bridge.getLogger().warn("Failed to close the message ID log");
+                this.bridge.getLogger().error("IOException: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Record {
+        private final long timestamp;
+        private final long discordId;
+        private final long previous;
+        private final String eventId;
+        private final byte[] eventIdBytes;
+
+        Record(long timestamp, long discordId, long previous, String eventId) {
+            this.timestamp = timestamp;
+            this.discordId = discordId;
+            this.previous = previous;
+            this.eventId = eventId;
+            this.eventIdBytes = eventId.getBytes(StandardCharsets.UTF_8);
+        }
+
+        int getSize() {
+            return HEADER_SIZE + this.eventIdBytes.length;
+        }
+
+        ByteBuffer encode(long previous) {
+            var buffer = ByteBuffer.allocate(this.getSize());
+            buffer.putLong(this.timestamp);
+            buffer.putLong(this.discordId);
+            buffer.putLong(previous);
+            buffer.putShort((short) this.eventIdBytes.length);
+            buffer.put(this.eventIdBytes);
+            return buffer.flip();
+        }
+    }
+
+    /**
+     * Open addressing hash map from a non-zero long to a position in the log, stored in two arrays
+     * instead of a map of boxed longs as it has an entry for every mapping in the log.
+     */
+    private static class OffsetIndex {
+        private long[] keys = new long[1024];
+        private long[] offsets = new long[1024];
+        private int size = 0;
+
+        long get(long key) {
+            var mask = this.keys.length - 1;
+            for(int i = slot(key, mask); this.keys[i] != 0; i = (i + 1) & mask) {
+                if(this.keys[i] == key) return this.offsets[i];
+            }
+            return NONE;
+        }
+
+        void put(long key, long offset) {
+            if((this.size + 1) * 2 > this.keys.length) {
+                this.grow();
+            }
+
+            var mask = this.keys.length - 1;
+            var i = slot(key, mask);
+            while(this.keys[i] != 0 && this.keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+
+            if(this.keys[i] == 0) this.size++;
+            this.keys[i] = key;
+            this.offsets[i] = offset;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        private void grow() {
+            var oldKeys = this.keys;
+            var oldOffsets = this.offsets;
+            this.keys = new long[oldKeys.length * 2];
+            this.offsets = new long[oldOffsets.length * 2];
+            this.size = 0;
+
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldKeys[i] != 0) this.put(oldKeys[i], oldOffsets[i]);
+            }
+        }
+
+        private static int slot(long key, int mask) {
+            var mixed = key * 0x9e3779b97f4a7c15L; // Discord IDs share their low bits often, so spread them out
+            return (int) (mixed >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Serves the metrics of the bridge at "/metrics" in the Prometheus text format, on the Spring web server the
+ * appservice already runs for the homeserver.
+ *
+ * Spring creates the controller itself, as it is registered through "META-INF/spring.factories", so the bridge
+ * hands over its registry with {@link #setRegistry(MetricsRegistry)}. Until then, or if metrics are disabled
+ * in the config, the endpoint answers with 404.
+ *
+ * @author jython234
+ */
+@RestController
+public class MetricsController {
+    private static final MediaType CONTENT_TYPE = MediaType.parseMediaType("text/plain; version=0.0.4; charset=utf-8");
+
+    private static volatile MetricsRegistry registry;
+
+    static void setRegistry(MetricsRegistry registry) {
+        MetricsController.registry = registry;
+    }
+
+    @GetMapping("/metrics")
+    public ResponseEntity<String> scrape() {
+        var registry = MetricsController.registry;
+        if(registry == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        return ResponseEntity.ok().contentType(CONTENT_TYPE).body(registry.scrape());
+    }
+}
@@ -0,0 +1,251 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collects the metrics of the bridge, which are served in the Prometheus text format by the {@link MetricsController}.
+ *
+ * Metrics are registered once by name and labels, registering the same metric again returns the existing one.
+ * Counters, histograms and timers are updated without locking, so they can be used on the message paths.
+ * Gauges read their value when the metrics are scraped.
+ *
+ * @author jython234
+ */
+public class MetricsRegistry {
+    public static final String PREFIX = "discord_bridge_";
+
+    /**
+     * Buckets of timers, in seconds.
+     */
+    private static final double[] TIMER_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private final Map<String, Family> families = new LinkedHashMap<>(); // Name -> Family, in the order they were registered
+
+    /**
+     * Gets or registers a counter.
+     * @param name The name of the counter, without the prefix. It should end with "_total".
+     * @param help A description of what is counted.
+     * @param labels Label names and values, alternating.
+     * @return The counter.
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) this.getFamily(name, help, "counter").metrics.computeIfAbsent(formatLabels(labels), key -> new Counter());
+    }
+
+    /**
+     * Gets or registers a counter that reads its value from elsewhere, for things that are already counted.
+     */
+    public void functionCounter(String name, String help, Supplier<Number> value, String... labels) {
+        this.getFamily(name, help, "counter").metrics.putIfAbsent(formatLabels(labels), new Gauge(value));
+    }
+
+    public void gauge(String name, String help, Supplier<Number> value, String... labels) {
+        this.getFamily(name, help, "gauge").metrics.putIfAbsent(formatLabels(labels), new Gauge(value));
+    }
+
+    /**
+     * Gets or registers a histogram.
+     * @param buckets The upper bounds of the buckets, in increasing order.
+     */
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) this.getFamily(name, help, "histogram").metrics.computeIfAbsent(formatLabels(labels), key -> new Histogram(buckets));
+    }
+
+    /**
+     * Gets or registers a timer, a histogram of durations in seconds.
+     * @param name The name of the timer, without the prefix. It should end with "_seconds".
+     */
+    public Timer timer(String name, String help, String... labels) {
+        return (Timer) this.getFamily(name, help, "histogram").metrics.computeIfAbsent(formatLabels(labels), key -> new Timer());
+    }
+
+    /**
+     * Counts an error that happened while bridging, by which side it came from.
+     * @param throwable The error.
+     */
+    public void recordError(Throwable throwable) {
+        var source = "bridge";
+        for(var cause = throwable; cause != null; cause = cause.getCause()) {
+            if(cause instanceof MatrixNetworkException) {
+                source = "matrix";
+                break;
+            }
+            if(cause.getClass().getName().startsWith("net.dv8tion.")) {
+                source = "discord";
+                break;
+            }
+        }
+        this.recordError(source);
+    }
+
+    /**
+     * Counts an error that happened while bridging.
+     * @param source Where the error came from: "matrix", "discord" or "bridge".
+     */
+    public void recordError(String source) {
+        this.counter("errors_total", "Errors while bridging, by where they came from.", "source", source).increment();
+    }
+
+    private synchronized Family getFamily(String name, String help, String type) {
+        var family = this.families.computeIfAbsent(name, key -> new Family(help, type));
+        if(!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private static String formatLabels(String... labels) {
+        if(labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name and value pairs");
+
+        var builder = new StringBuilder();
+        for(int i = 0; i < labels.length; i += 2) {
+            if(i > 0) builder.append(',');
+            builder.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return All the metrics in the Prometheus text format.
+     */
+    public String scrape() {
+        var out = new StringBuilder(4096);
+        synchronized (this) {
+            this.families.forEach((name, family) -> {
+                out.append("# HELP ").append(PREFIX).append(name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(family.type).append('\n');
+                family.metrics.forEach((labels, metric) -> metric.write(out, PREFIX + name, labels));
+            });
+        }
+        return out.toString();
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if(!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ');
+        if(value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String formatBound(double bound) {
+        return bound == Math.rint(bound) ? Long.toString((long) bound) : Double.toString(bound);
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> metrics = new ConcurrentHashMap<>(); // Formatted labels -> Metric
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private interface Metric {
+        void write(StringBuilder out, String name, String labels);
+    }
+
+    public static class Counter implements Metric {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            this.count.increment();
+        }
+
+        public void increment(long amount) {
+            this.count.add(amount);
+        }
+
+        public long get() {
+            return this.count.sum();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            writeSample(out, name, labels, this.count.sum());
+        }
+    }
+
+    private static class Gauge implements Metric {
+        private final Supplier<Number> value;
+
+        Gauge(Supplier<Number> value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            writeSample(out, name, labels, this.value.get().doubleValue());
+        }
+    }
+
+    public static class Histogram implements Metric {
+        private final double[] buckets;
+        private final LongAdder[] bucketCounts; // Not cumulative, summed up when written
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] buckets) {
+            this.buckets = buckets.clone();
+            this.bucketCounts = new LongAdder[buckets.length];
+            for(int i = 0; i < buckets.length; i++) {
+                this.bucketCounts[i] = new LongAdder();
+            }
+        }
+
+        public void record(double value) {
+            for(int i = 0; i < this.buckets.length; i++) {
+                if(value <= this.buckets[i]) {
+                    this.bucketCounts[i].increment();
+                    break;
+                }
+            }
+            this.count.increment();
+            this.sum.add(value);
+        }
+
+        @Override
+        public void write(StringBuilder out, String name, String labels) {
+            var prefix = labels.isEmpty() ? "" : labels + ",";
+
+            long cumulative = 0;
+            for(int i = 0; i < this.buckets.length; i++) {
+                cumulative += this.bucketCounts[i].sum();
+                writeSample(out, name + "_bucket", prefix + "le=\"" + formatBound(this.buckets[i]) + "\"", cumulative);
+            }
+
+            var count = this.count.sum();
+            writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", count);
+            writeSample(out, name + "_sum", labels, this.sum.sum());
+            writeSample(out, name + "_count", labels, count);
+        }
+    }
+
+    public static class Timer extends Histogram {
+        Timer() {
+            super(TIMER_BUCKETS);
+        }
+
+        /**
+         * Records a duration.
+         * @param startNanos When the timed work started, from {@link System#nanoTime()}.
+         */
+        public void recordSince(long startNanos) {
+            this.record((System.nanoTime() - startNanos) / 1e9);
+        }
+    }
+}
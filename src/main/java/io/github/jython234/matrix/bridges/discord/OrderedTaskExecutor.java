@@ -0,0 +1,264 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a shared pool of worker threads, while keeping tasks
+ * submitted with the same key (for example a channel or room ID) in order.
+ *
+ * Tasks with different keys run in parallel, tasks with the same key run one
+ * after another in the order they were submitted. The amount of tasks waiting for
+ * each key can be bounded, the {@link OverflowPolicy} decides what happens when
+ * a key's queue is full. A key's queue is removed once it has been drained, so keys
+ * that are no longer used don't take up memory.
+ *
+ * @author jython234
+ */
+public class OrderedTaskExecutor {
+    private static final int MAX_TASKS_PER_RUN = 32; // Give other keys a chance to run after this many tasks
+
+    private final String name;
+    private final Logger logger;
+    private final ExecutorService pool;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+
+    private final Map<Object, KeyQueue> queues = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+    private final AtomicLong processed = new AtomicLong(0);
+    private final AtomicLong totalLatency = new AtomicLong(0);
+    private final AtomicLong maxLatency = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    public OrderedTaskExecutor(String name, int threads, Logger logger) {
+        this(name, threads, Integer.MAX_VALUE, OverflowPolicy.BLOCK, logger);
+    }
+
+    public OrderedTaskExecutor(String name, int threads, int capacity, OverflowPolicy overflowPolicy, Logger logger) {
+        this.name = name;
+        this.logger = logger;
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+
+        var threadCount = new AtomicInteger(0);
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            var thread = new Thread(runnable);
+            thread.setName(name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a task to be run after all the tasks previously submitted with the same key.
+     * If the queue for the key is full the {@link OverflowPolicy} is applied.
+     * @param key The key to order the task by.
+     * @param task The task to run.
+     * @return If the task was queued, false if it was dropped.
+     */
+    public boolean submit(Object key, Runnable task) {
+        while(true) {
+            var queue = this.queues.computeIfAbsent(key, KeyQueue::new);
+
+            synchronized (queue) {
+                if(queue.removed) continue; // It was drained and removed before we got the lock, use the new one
+
+                if(queue.tasks.size() >= this.capacity) {
+                    switch (this.overflowPolicy) {
+                        case DROP_NEWEST:
+                            this.dropped.incrementAndGet();
+                            this.logger.warn(this.name + " queue for " + key + " is full, dropping new task.");
+                            return false;
+                        case DROP_OLDEST:
+                            queue.tasks.poll();
+                            this.queueDepth.decrementAndGet();
+                            this.dropped.incrementAndGet();
+                            this.logger.warn(this.name + " queue for " + key + " is full, dropping oldest task.");
+                            break;
+                        case BLOCK:
+                        default:
+                            try {
+                                while (queue.tasks.size() >= this.capacity) {
+                                    queue.wait(); // Wait for a worker to take a task from the queue
+                                }
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                this.dropped.incrementAndGet();
+                                return false;
+                            }
+                            if(queue.removed) continue; // Drained and removed while we waited, queuing here would run out of order
+                            break;
+                    }
+                }
+
+                var queued = new QueuedTask(task);
+                queue.tasks.add(queued);
+                this.queueDepth.incrementAndGet();
+
+                if(!queue.running) {
+                    queue.running = true;
+                    try {
+                        this.pool.execute(() -> this.runQueue(queue));
+                    } catch (RejectedExecutionException e) {
+                        // Shut down, nothing will run the queue anymore
+                        queue.tasks.remove(queued);
+                        queue.running = false;
+                        queue.removed = true;
+                        this.queues.remove(key, queue);
+                        this.queueDepth.decrementAndGet();
+                        this.dropped.incrementAndGet();
+                        this.logger.warn(this.name + " is shut down, dropping task for " + key + ".");
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    private void runQueue(KeyQueue queue) {
+        while(true) {
+            for(int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                QueuedTask next;
+                synchronized (queue) {
+                    next = queue.tasks.poll();
+                    if(next == null) {
+                        queue.running = false;
+                        queue.removed = true;
+                        this.queues.remove(queue.key, queue); // Drained, a new queue is created for the next task
+                        return;
+                    }
+                    queue.notifyAll(); // Wake up anyone waiting for space in the queue
+                }
+                this.queueDepth.decrementAndGet();
+
+                try {
+                    next.task.run();
+                } catch (RuntimeException e) {
+                    this.logger.warn("Uncaught exception in " + this.name + " task!");
+                    this.logger.error(e.getClass().getName() + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+
+                var latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - next.queuedAt);
+                this.processed.incrementAndGet();
+                this.totalLatency.addAndGet(latency);
+                this.maxLatency.accumulateAndGet(latency, Math::max);
+            }
+
+            // There are still tasks left, requeue so other keys waiting for a worker can run first
+            try {
+                this.pool.execute(() -> this.runQueue(queue));
+                return;
+            } catch (RejectedExecutionException e) {
+                // Shutting down, finish the queue on this thread instead
+            }
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the queued ones to finish.
+     * @param timeout Maximum time to wait, in milliseconds.
+     */
+    public void shutdown(long timeout) {
+        this.pool.shutdown();
+        try {
+            if(!this.pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                this.logger.warn(this.name + " did not finish " + this.queueDepth.get() + " queued tasks before shutdown.");
+                this.pool.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            this.pool.shutdownNow();
+        }
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return The amount of tasks waiting to be run.
+     */
+    public int getQueueDepth() {
+        return this.queueDepth.get();
+    }
+
+    /**
+     * @return The amount of tasks that have been run.
+     */
+    public long getProcessedCount() {
+        return this.processed.get();
+    }
+
+    /**
+     * @return The average time between a task being submitted and finishing, in milliseconds.
+     */
+    public long getAverageLatency() {
+        var count = this.processed.get();
+        return count == 0 ? 0 : this.totalLatency.get() / count;
+    }
+
+    /**
+     * @return The longest time between a task being submitted and finishing, in milliseconds.
+     */
+    public long getMaxLatency() {
+        return this.maxLatency.get();
+    }
+
+    /**
+     * @return The amount of tasks dropped because their queue was full.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * What to do when a task is submitted while the queue for its key is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until there's space in the queue, slowing down whoever is submitting.
+         */
+        BLOCK,
+        /**
+         * Drop the task that is being submitted.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest task waiting in the queue to make space.
+         */
+        DROP_OLDEST
+    }
+
+    private static class KeyQueue {
+        final Object key;
+        final ArrayDeque<QueuedTask> tasks = new ArrayDeque<>();
+        boolean running = false;
+        boolean removed = false; // Drained and removed from the map, tasks must go to a new queue
+
+        KeyQueue(Object key) {
+            this.key = key;
+        }
+    }
+
+    private static class QueuedTask {
+        final Runnable task;
+        final long queuedAt;
+
+        QueuedTask(Runnable task) {
+            this.task = task;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import net.dv8tion.jda.core.entities.Member;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Sets up the Matrix users ("puppets") of Discord members: their database entry, display name and avatar.
+ *
+ * Normally every member is set up when their channels are synced. In lazy mode (the "lazyPuppets" option in
+ * the "sync" section of the config) members are only set up right away once they're active, for example when they
+ * send a message. Everyone else is set up slowly in the background by a low priority filler thread.
+ *
+ * @author jython234
+ */
+public class PuppetProvisioner {
+    private MatrixDiscordBridge bridge;
+    private final boolean lazy;
+    private final long fillerDelay;
+
+    // Discord user ID -> Setup started since the bridge started, completes with if it succeeded. Failed setups are removed so they're tried again.
+    private final Map<Long, CompletableFuture<Boolean>> provisioned = new ConcurrentHashMap<>();
+    private final BlockingQueue<Member> fillerQueue = new LinkedBlockingQueue<>();
+    private Thread fillerThread;
+
+    PuppetProvisioner(MatrixDiscordBridge bridge, boolean lazy, long fillerDelay) {
+        this.bridge = bridge;
+        this.lazy = lazy;
+        this.fillerDelay = fillerDelay;
+
+        if(lazy) {
+            this.fillerThread = new Thread(this::fillerLoop);
+            this.fillerThread.setName("PuppetFillerThread");
+            this.fillerThread.setPriority(Thread.MIN_PRIORITY);
+            this.fillerThread.setDaemon(true);
+            this.fillerThread.start();
+        }
+    }
+
+    /**
+     * Sets up a member found while syncing. In lazy mode they are queued for the background filler instead.
+     * @param member The Discord member.
+     */
+    public void register(Member member) {
+        if(this.lazy) {
+            if(!this.provisioned.containsKey(member.getUser().getIdLong())) {
+                this.fillerQueue.add(member);
+            }
+        } else {
+            this.ensureProvisioned(member);
+        }
+    }
+
+    /**
+     * Makes sure a member is set up, because they are active or needed on Matrix. Does nothing if
+     * they already have been set up since the bridge started. If they're being set up by another
+     * thread right now, this waits until that is done.
+     * @param member The Discord member.
+     */
+    public void ensureProvisioned(Member member) {
+        var userId = member.getUser().getIdLong();
+        var setup = new CompletableFuture<Boolean>();
+        var existing = this.provisioned.putIfAbsent(userId, setup);
+        if(existing != null) {
+            existing.join(); // Already set up, or being set up by someone else
+            return;
+        }
+
+        var success = false;
+        try {
+            success = this.bridge.getDbManagement().setupMemberInDatabase(member);
+        } finally {
+            if(!success) {
+                this.provisioned.remove(userId, setup); // So the next caller tries again
+            }
+            setup.complete(success);
+        }
+    }
+
+    /**
+     * Marks a member as set up, without setting them up. Used when it's known their
+     * Matrix user is already up to date.
+     * @param userId The Discord user ID.
+     */
+    void markProvisioned(long userId) {
+        this.provisioned.put(userId, CompletableFuture.completedFuture(true));
+    }
+
+    /**
+     * @param userId The Discord user ID.
+     * @return If the member has been set up successfully since the bridge started.
+     */
+    public boolean isProvisioned(long userId) {
+        var setup = this.provisioned.get(userId);
+        return setup != null && setup.getNow(false);
+    }
+
+    private void fillerLoop() {
+        while(true) {
+            try {
+                this.ensureProvisioned(this.fillerQueue.take());
+                Thread.sleep(this.fillerDelay); // Leave room for everything else
+            } catch (InterruptedException e) {
+                return; // Interrupted, that means the bridge is stopping
+            }
+        }
+    }
+
+    /**
+     * @return The amount of members waiting to be set up by the background filler.
+     */
+    public int getPendingCount() {
+        return this.fillerQueue.size();
+    }
+
+    void shutdown() {
+        if(this.fillerThread != null) {
+            this.fillerThread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import io.github.jython234.matrix.bridge.db.Room;
+import net.dv8tion.jda.core.entities.TextChannel;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the Room entries in the database, keyed by
+ * the Discord channel snowflake, by the Matrix room ID and by the alias name.
+ *
+ * The message paths look rooms up here instead of the database. The
+ * index holds the same Room objects that are updated by {@link DatabaseManagement}
+ * and {@link BridgingConnector}, which re-index them whenever a room is created, renamed,
+ * bridged, unbridged or deleted.
+ *
+ * Lookups that found nothing in the database are remembered as well, so messages in channels
+ * and rooms that aren't bridged don't hit the database every time. Indexing a room replaces them.
+ *
+ * @author jython234
+ */
+public class RoomIndex {
+    /**
+     * Stored for channels that have no room in the database.
+     */
+    private static final Room NO_ROOM = new Room(null, "");
+    /**
+     * Stored for Matrix rooms that aren't bridged to a channel.
+     */
+    private static final long NOT_BRIDGED = -1;
+
+    private MatrixDiscordBridge bridge;
+
+    private final Map<Long, Room> roomsByChannel = new ConcurrentHashMap<>();
+    private final Map<String, Long> channelsByMatrixId = new ConcurrentHashMap<>();
+    private final Map<String, Long> channelsByAlias = new ConcurrentHashMap<>(); // Alias name -> Channel ID, see Util#getRoomAliasForChannel
+
+    RoomIndex(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Adds or updates the entry for a channel. This must be called again
+     * after the Matrix ID of the room changes.
+     * @param channelId The Discord channel snowflake.
+     * @param room The Room entry for the channel.
+     */
+    void index(long channelId, Room room) {
+        this.roomsByChannel.put(channelId, room);
+
+        if(room.getMatrixId() != null && !room.getMatrixId().equals("")) {
+            this.channelsByMatrixId.put(room.getMatrixId(), channelId);
+        }
+        if(room.getAdditionalData().get("alias") != null) {
+            this.channelsByAlias.put((String) room.getAdditionalData().get("alias"), channelId);
+        }
+    }
+
+    /**
+     * Removes the Matrix room ID mapping, used when a room is unbridged.
+     * @param matrixId The Matrix room ID that is no longer bridged.
+     */
+    void unindexMatrixId(String matrixId) {
+        if(matrixId != null && !matrixId.equals("")) this.channelsByMatrixId.put(matrixId, NOT_BRIDGED);
+    }
+
+    /**
+     * Removes all the entries for a channel, used when the channel is deleted.
+     * @param channelId The Discord channel snowflake.
+     */
+    void remove(long channelId) {
+        var room = this.roomsByChannel.put(channelId, NO_ROOM);
+        if(room != null && room != NO_ROOM) {
+            this.unindexMatrixId(room.getMatrixId());
+        }
+    }
+
+    public Room getRoomForChannel(TextChannel channel) throws IOException {
+        var room = this.roomsByChannel.get(channel.getIdLong());
+        if(room == null) {
+            // Not indexed yet, fall back to the database once
+            room = this.bridge.getDbManagement().getRoom(Util.getRoomIdForChannel(channel));
+            if(room != null) {
+                this.index(channel.getIdLong(), room);
+            } else {
+                this.roomsByChannel.putIfAbsent(channel.getIdLong(), NO_ROOM);
+            }
+        }
+        return room == NO_ROOM ? null : room;
+    }
+
+    public Room getRoomByMatrixId(String matrixId) throws IOException {
+        var channelId = this.channelsByMatrixId.get(matrixId);
+        if(channelId != null) {
+            if(channelId == NOT_BRIDGED) return null;
+
+            var room = this.roomsByChannel.get(channelId);
+            if(room != null && matrixId.equals(room.getMatrixId())) {
+                return room;
+            }
+            this.channelsByMatrixId.remove(matrixId); // Stale mapping
+        }
+
+        // Not indexed, fall back to the database
+        var room = this.bridge.getDbManagement().getRoomByMatrixId(matrixId);
+        if(room != null && room.getAdditionalData().get("channel") != null) {
+            this.index(Long.parseLong((String) room.getAdditionalData().get("channel")), room);
+        } else {
+            this.channelsByMatrixId.putIfAbsent(matrixId, NOT_BRIDGED);
+        }
+        return room;
+    }
+
+    /**
+     * Gets the Discord channel a Matrix room alias belongs to.
+     * @param aliasName The alias name, see {@link Util#getAliasNameFromRoomAlias(String)}.
+     * @return The channel snowflake, or -1 if there is no channel with that alias.
+     */
+    public long getChannelIdForAlias(String aliasName) {
+        var channelId = this.channelsByAlias.get(aliasName);
+        if(channelId != null) {
+            var room = this.roomsByChannel.get(channelId);
+            if(room != null && room != NO_ROOM && aliasName.equals(room.getAdditionalData().get("alias"))) {
+                return channelId;
+            }
+            this.channelsByAlias.remove(aliasName); // Stale mapping, the channel was renamed
+        }
+
+        // Not indexed, look through the channels instead
+        if(this.bridge.getJDA() == null) return -1; // Not connected to Discord yet
+        for(var channel : this.bridge.getJDA().getTextChannels()) {
+            if(Util.getRoomAliasForChannel(channel).equals(aliasName)) {
+                return channel.getIdLong();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the Discord channel snowflake bridged to a Matrix room.
+     * @param matrixId The Matrix room ID.
+     * @return The channel snowflake, or -1 if the room isn't bridged.
+     * @throws IOException If there was an error while falling back to the database.
+     */
+    public long getChannelIdForMatrixId(String matrixId) throws IOException {
+        if(this.getRoomByMatrixId(matrixId) == null) return -1; // Also drops stale mappings
+
+        var channelId = this.channelsByMatrixId.get(matrixId);
+        return channelId == null ? NOT_BRIDGED : channelId;
+    }
+}
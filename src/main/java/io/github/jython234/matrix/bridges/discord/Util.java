@@ -2,44 +2,57 @@ package io.github.jython234.matrix.bridges.discord;
 
 import net.dv8tion.jda.core.entities.Channel;
 
-import javax.imageio.ImageIO;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 
 public class Util {
+    /**
+     * Gets the ID of a channel's room in the database, which is the channel snowflake so it never changes.
+     * @param channel The Discord channel.
+     * @return The ID of the room in the database.
+     */
     public static String getRoomIdForChannel(Channel channel) {
-        return "#" + channel.getName() + ";" + channel.getId().substring(channel.getId().length() - 4);
+        return channel.getId();
     }
 
-    public static String getRoomIdForChannel(Channel channel, String name) {
-        return "#" + name + ";" + channel.getId().substring(channel.getId().length() - 4);
+    /**
+     * Gets the name of a channel's Matrix room alias, the part between "#!discord_" and the domain.
+     * Rooms used to be stored in the database under this name as well.
+     * @param channel The Discord channel.
+     * @return The alias name.
+     */
+    public static String getRoomAliasForChannel(Channel channel) {
+        return getRoomAliasForChannel(channel, channel.getName());
     }
 
-    public static long getAudioFileDuration(File file) throws IOException, UnsupportedAudioFileException {
-        var audioInputStream = AudioSystem.getAudioInputStream(file);
-        var format = audioInputStream.getFormat();
-
-        return (long) (1000 * audioInputStream.getFrameLength() / format.getFrameRate());
+    public static String getRoomAliasForChannel(Channel channel, String name) {
+        return "#" + name + ";" + channel.getId().substring(channel.getId().length() - 4);
     }
 
-    public static void scaleImageAndSave(File source, File dest) throws IOException {
-        var img = ImageIO.read(source); // Our source file
-        var imgScaled = new BufferedImage(32, 32, BufferedImage.TYPE_INT_ARGB); // Scaled file
-
-        Graphics2D graphics = imgScaled.createGraphics();
-        // Create transparent background
-        graphics.setComposite(AlphaComposite.Clear);
-        graphics.fillRect( 0, 0, 32, 32);
-
-        // Draw our source image scaled onto the transparent background
-        graphics.setComposite(AlphaComposite.Src);
-        graphics.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
-        graphics.drawImage(img, 0, 0, 32, 32, null);
+    /**
+     * Extracts the alias name from a full Matrix room alias of a bridged room.
+     * @param alias The full alias, for example "#!discord_#general;1234:example.com".
+     * @return The alias name, for example "#general;1234".
+     */
+    public static String getAliasNameFromRoomAlias(String alias) {
+        var localpart = alias.substring(1, alias.indexOf(':')); // The domain can contain a port
+        return localpart.startsWith(MatrixDiscordBridge.ROOM_PREFIX) ? localpart.substring(MatrixDiscordBridge.ROOM_PREFIX.length()) : localpart;
+    }
 
-        ImageIO.write(imgScaled, "PNG", dest); // Save the image
+    /**
+     * Gets the duration of an audio file from its header.
+     * @param header Stream of the start of the audio file, it must contain at least the header.
+     * @return The duration in milliseconds, or null if the header doesn't specify it.
+     */
+    public static Long getAudioDuration(InputStream header) throws IOException, UnsupportedAudioFileException {
+        var fileFormat = AudioSystem.getAudioFileFormat(header);
+        var frameRate = fileFormat.getFormat().getFrameRate();
+
+        if(fileFormat.getFrameLength() == AudioSystem.NOT_SPECIFIED || frameRate == AudioSystem.NOT_SPECIFIED) {
+            return null;
+        }
+        return (long) (1000 * fileFormat.getFrameLength() / frameRate);
     }
 }
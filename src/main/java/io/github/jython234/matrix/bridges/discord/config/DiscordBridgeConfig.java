@@ -7,11 +7,23 @@ package io.github.jython234.matrix.bridges.discord.config;
  */
 public class DiscordBridgeConfig {
     Discord discord;
+    Sync sync;
+    Pipeline pipeline;
+    Cache cache;
+    Presence presence;
+    Messages messages;
+    Metrics metrics;
     String matrixModRole;
     String matrixAdminRole;
 
     DiscordBridgeConfig() {
         this.discord = new Discord();
+        this.sync = new Sync();
+        this.pipeline = new Pipeline();
+        this.cache = new Cache();
+        this.presence = new Presence();
+        this.messages = new Messages();
+        this.metrics = new Metrics();
     }
 
     public static class Discord {
@@ -34,10 +46,205 @@ public class DiscordBridgeConfig {
         }
     }
 
+    public static class Sync {
+        /**
+         * Amount of worker threads used to sync channels and members
+         * during the initial sync.
+         */
+        int workers = 4;
+
+        /**
+         * Amount of worker threads used to join and remove the members of a
+         * room when it is bridged or unbridged.
+         */
+        int membershipWorkers = 8;
+
+        /**
+         * If Discord members should only be set up on Matrix once they're active, with
+         * everyone else being set up slowly in the background.
+         */
+        boolean lazyPuppets = false;
+
+        /**
+         * Delay between members set up in the background in lazy mode, in milliseconds.
+         */
+        int fillerDelay = 200;
+
+        public int getWorkers() {
+            return workers;
+        }
+
+        public int getMembershipWorkers() {
+            return membershipWorkers;
+        }
+
+        public boolean isLazyPuppets() {
+            return lazyPuppets;
+        }
+
+        public int getFillerDelay() {
+            return fillerDelay;
+        }
+    }
+
+    public static class Pipeline {
+        /**
+         * Amount of worker threads used to send Matrix messages to Discord.
+         * Messages in the same room are always sent in order.
+         */
+        int matrixWorkers = 4;
+
+        /**
+         * Amount of worker threads used to send Discord messages to Matrix.
+         * Messages in the same channel are always sent in order.
+         */
+        int discordWorkers = 4;
+
+        /**
+         * Maximum amount of Discord events waiting to be sent for each channel.
+         */
+        int discordQueueCapacity = 1000;
+
+        /**
+         * What to do when a channel's Discord queue is full: "drop_newest", "drop_oldest" or "block".
+         * Blocking stops the Discord event thread until there is space, which holds up every channel.
+         */
+        String discordOverflowPolicy = "drop_newest";
+
+        public int getMatrixWorkers() {
+            return matrixWorkers;
+        }
+
+        public int getDiscordWorkers() {
+            return discordWorkers;
+        }
+
+        public int getDiscordQueueCapacity() {
+            return discordQueueCapacity;
+        }
+
+        public String getDiscordOverflowPolicy() {
+            return discordOverflowPolicy;
+        }
+    }
+
+    public static class Cache {
+        /**
+         * Directory to store cached media in, relative to the config directory.
+         */
+        String directory = "media-cache";
+
+        /**
+         * Maximum size of the media cached in memory, in megabytes.
+         */
+        int memorySize = 32;
+
+        /**
+         * Maximum size of the media cached on disk, in megabytes.
+         */
+        int diskSize = 256;
+
+        /**
+         * Maximum amount of source URLs and content hashes remembered with the mxc:// URL they were uploaded to.
+         */
+        int maxMappings = 10000;
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public int getMemorySize() {
+            return memorySize;
+        }
+
+        public int getDiskSize() {
+            return diskSize;
+        }
+
+        public int getMaxMappings() {
+            return maxMappings;
+        }
+    }
+
+    public static class Presence {
+        /**
+         * How often the presence of online users is sent to Matrix again, so it doesn't expire, in seconds.
+         */
+        int keepaliveInterval = 50;
+
+        /**
+         * How long presence changes of a user are collected before the latest one is sent, in milliseconds.
+         */
+        int debounceWindow = 5000;
+
+        /**
+         * Maximum amount of presence updates sent to Matrix each second.
+         */
+        int maxUpdatesPerSecond = 20;
+
+        public int getKeepaliveInterval() {
+            return keepaliveInterval;
+        }
+
+        public int getDebounceWindow() {
+            return debounceWindow;
+        }
+
+        public int getMaxUpdatesPerSecond() {
+            return maxUpdatesPerSecond;
+        }
+    }
+
+    public static class Messages {
+        /**
+         * How long the Matrix event IDs of bridged messages are kept, so edits and deletions can be bridged, in days.
+         */
+        int retentionDays = 30;
+
+        public int getRetentionDays() {
+            return retentionDays;
+        }
+    }
+
+    public static class Metrics {
+        /**
+         * If the metrics should be served in the Prometheus format, at "/metrics" on the appservice's web server.
+         */
+        boolean enabled = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+    }
+
     public Discord getDiscord() {
         return discord;
     }
 
+    public Sync getSync() {
+        return sync;
+    }
+
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public Presence getPresence() {
+        return presence;
+    }
+
+    public Messages getMessages() {
+        return messages;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public String getMatrixModRole() { return this.matrixModRole; }
 
     public String getMatrixAdminRole() { return this.matrixAdminRole; }
@@ -43,6 +43,47 @@ public class DiscordBridgeConfigLoader {
             throw new KeyNotFoundException("Failed to find all required keys in \"discord\" section!");
         }
 
+        Map sync = (Map) map.get("sync");
+        if(sync != null) { // The sync section is optional, defaults are used if it's missing
+            if(sync.get("workers") != null) config.sync.workers = (Integer) sync.get("workers");
+            if(sync.get("membershipWorkers") != null) config.sync.membershipWorkers = (Integer) sync.get("membershipWorkers");
+            if(sync.get("lazyPuppets") != null) config.sync.lazyPuppets = (Boolean) sync.get("lazyPuppets");
+            if(sync.get("fillerDelay") != null) config.sync.fillerDelay = (Integer) sync.get("fillerDelay");
+        }
+
+        Map pipeline = (Map) map.get("pipeline");
+        if(pipeline != null) { // Optional as well
+            if(pipeline.get("matrixWorkers") != null) config.pipeline.matrixWorkers = (Integer) pipeline.get("matrixWorkers");
+            if(pipeline.get("discordWorkers") != null) config.pipeline.discordWorkers = (Integer) pipeline.get("discordWorkers");
+            if(pipeline.get("discordQueueCapacity") != null) config.pipeline.discordQueueCapacity = (Integer) pipeline.get("discordQueueCapacity");
+            if(pipeline.get("discordOverflowPolicy") != null) config.pipeline.discordOverflowPolicy = (String) pipeline.get("discordOverflowPolicy");
+        }
+
+        Map cache = (Map) map.get("cache");
+        if(cache != null) { // Optional as well
+            if(cache.get("directory") != null) config.cache.directory = (String) cache.get("directory");
+            if(cache.get("memorySize") != null) config.cache.memorySize = (Integer) cache.get("memorySize");
+            if(cache.get("diskSize") != null) config.cache.diskSize = (Integer) cache.get("diskSize");
+            if(cache.get("maxMappings") != null) config.cache.maxMappings = (Integer) cache.get("maxMappings");
+        }
+
+        Map presence = (Map) map.get("presence");
+        if(presence != null) { // Optional as well
+            if(presence.get("keepaliveInterval") != null) config.presence.keepaliveInterval = (Integer) presence.get("keepaliveInterval");
+            if(presence.get("debounceWindow") != null) config.presence.debounceWindow = (Integer) presence.get("debounceWindow");
+            if(presence.get("maxUpdatesPerSecond") != null) config.presence.maxUpdatesPerSecond = (Integer) presence.get("maxUpdatesPerSecond");
+        }
+
+        Map messages = (Map) map.get("messages");
+        if(messages != null) { // Optional as well
+            if(messages.get("retentionDays") != null) config.messages.retentionDays = (Integer) messages.get("retentionDays");
+        }
+
+        Map metrics = (Map) map.get("metrics");
+        if(metrics != null) { // Optional as well
+            if(metrics.get("enabled") != null) config.metrics.enabled = (Boolean) metrics.get("enabled");
+        }
+
         return config;
     }
 }
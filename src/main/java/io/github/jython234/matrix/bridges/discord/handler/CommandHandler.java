@@ -2,6 +2,7 @@ package io.github.jython234.matrix.bridges.discord.handler;
 
 import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
 import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
+import io.github.jython234.matrix.bridges.discord.OrderedTaskExecutor;
 import io.github.jython234.matrix.bridges.discord.Util;
 import net.dv8tion.jda.core.MessageBuilder;
 import net.dv8tion.jda.core.Permission;
@@ -85,6 +86,12 @@ public class CommandHandler {
                     + "\nRAM Free:     " + (Runtime.getRuntime().freeMemory() / 1048576) + "MB out of " + (Runtime.getRuntime().totalMemory() / 1048576) + "MB"
                     + "\nMax RAM:      " + (Runtime.getRuntime().maxMemory() / 1048576) + "MB"
                     + "\nDiscord Ping: " + event.getJDA().getPing() + "ms"
+                    + "\n" + this.getQueueInfo(this.bridge.getMatrixToDiscordExecutor())
+                    + "\n" + this.getQueueInfo(this.bridge.getDiscordToMatrixExecutor())
+                    + "\nPresences: " + this.bridge.getPresenceHandler().getPendingCount() + " pending, " + this.bridge.getPresenceHandler().getSentCount() + " sent, "
+                        + this.bridge.getPresenceHandler().getSuppressedCount() + " suppressed"
+                    + "\nDatabase: " + this.bridge.getDbManagement().getPendingCount() + " pending, " + this.bridge.getDbManagement().getFieldUpdateCount() + " field updates in "
+                        + this.bridge.getDbManagement().getWriteCount() + " writes"
                 );
             return true;
         } else if(content.startsWith("$bridge")) {
@@ -117,6 +124,11 @@ public class CommandHandler {
         }
     }
 
+    private String getQueueInfo(OrderedTaskExecutor executor) {
+        return executor.getName() + ": " + executor.getQueueDepth() + " queued, " + executor.getProcessedCount() + " processed, "
+                + executor.getDroppedCount() + " dropped, " + executor.getAverageLatency() + "ms avg latency, " + executor.getMaxLatency() + "ms max latency";
+    }
+
     private void handleInviteCommand(TextChannel channel, Message message, Member member) throws IOException, MatrixNetworkException {
         var split = message.getContentDisplay().trim().split("\\s+");
         if(split.length != 2) { // Make sure it is correctly formatted
@@ -131,8 +143,7 @@ public class CommandHandler {
         }
 
         // Get the room
-        var roomId = Util.getRoomIdForChannel(channel);
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
         if(room == null || room.getMatrixId() == null || room.getMatrixId().equals("")) {
             this.replyToMember(channel, member, "This channel appears to not be bridged.");
             return;
@@ -151,8 +162,7 @@ public class CommandHandler {
         var userId = split[1];
 
         // Get the room
-        var roomId = Util.getRoomIdForChannel(channel);
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
         if(room == null) {
             this.replyToMember(channel, member, "I couldn't find this channel in my database, something is wrong!");
             return;
@@ -187,8 +197,7 @@ public class CommandHandler {
         var userId = split[1];
 
         // Get the room
-        var roomId = Util.getRoomIdForChannel(channel);
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
         if(room == null) {
             this.replyToMember(channel, member, "I couldn't find this channel in my database, something is wrong!");
             return;
@@ -244,7 +253,7 @@ public class CommandHandler {
 
         // Get the room
         var roomId = Util.getRoomIdForChannel(channel);
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
         if(room == null) {
             this.replyToMember(channel, member, "I couldn't find this channel in my database, something is wrong!");
             return;
@@ -270,8 +279,7 @@ public class CommandHandler {
         }
 
         // Get the room
-        var roomId = Util.getRoomIdForChannel(channel);
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(channel);
         if(room == null) {
             this.replyToMember(channel, member, "I couldn't find this channel in my database, something is wrong!");
             return;
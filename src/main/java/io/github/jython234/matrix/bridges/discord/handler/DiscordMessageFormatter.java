@@ -0,0 +1,257 @@
+package io.github.jython234.matrix.bridges.discord.handler;
+
+import io.github.jython234.matrix.appservice.event.room.message.MessageContent;
+import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
+import net.dv8tion.jda.core.entities.Emote;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.Role;
+import net.dv8tion.jda.core.entities.TextChannel;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+
+import java.io.IOException;
+
+/**
+ * Converts Discord messages to Matrix message content.
+ *
+ * The raw Discord message is scanned once, replacing the Discord markup for user mentions
+ * (<code>&lt;@id&gt;</code> and <code>&lt;@!id&gt;</code>), role mentions (<code>&lt;@&amp;id&gt;</code>),
+ * channel mentions (<code>&lt;#id&gt;</code>) and custom emotes (<code>&lt;:name:id&gt;</code>). The same pass
+ * builds both the plain text body and the markdown source for the HTML body, where mentions and emotes
+ * are written as inline HTML that commonmark passes through, so no regex replacements are needed.
+ * Names taken from Discord are escaped, so they can't add markup of their own.
+ *
+ * @author jython234
+ */
+class DiscordMessageFormatter {
+    private MatrixDiscordBridge bridge;
+    private Parser parser;
+    private HtmlRenderer renderer;
+
+    DiscordMessageFormatter(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+        this.parser = Parser.builder().build();
+        this.renderer = HtmlRenderer.builder().build();
+    }
+
+    /**
+     * Converts a Discord message to Matrix message content. If the message doesn't contain
+     * any markup a plain text message is returned, otherwise an HTML formatted one.
+     * @param message The Discord message.
+     * @return The Matrix message content.
+     * @throws IOException If there was an error while looking up an emote in the database.
+     */
+    MessageContent format(Message message) throws IOException {
+        var raw = message.getContentRaw();
+        var body = new StringBuilder(raw.length());
+        var markdown = new StringBuilder(raw.length() + 32);
+        var formatted = false;
+
+        var i = 0;
+        while(i < raw.length()) {
+            var c = raw.charAt(i);
+            if(c == '<') {
+                var end = raw.indexOf('>', i + 1);
+                if(end > 0 && this.appendToken(message, raw, i + 1, end, body, markdown)) {
+                    formatted = true;
+                    i = end + 1;
+                    continue;
+                }
+            } else if(c == '*' || c == '_' || c == '~') {
+                formatted = true; // Markdown characters
+            }
+
+            body.append(c);
+            markdown.append(c);
+            i++;
+        }
+
+        if(formatted) {
+            var content = new MessageContent.FormattedTextMessageContent();
+            content.body = body.toString();
+            content.format = MessageContent.FormattedTextMessageContent.FORMAT_TYPE_HTML;
+            content.formattedBody = newlinesToBreaks(this.renderer.render(this.parser.parse(markdown.toString())).trim());
+            return content;
+        } else {
+            // There aren't any markdown characters, emotes, or mentions so we can send a plain message
+            var content = new MessageContent.TextMessageContent();
+            content.body = body.toString();
+            return content;
+        }
+    }
+
+    /**
+     * Appends the replacement for a Discord markup token.
+     * @param message The message the token is from.
+     * @param raw The raw message content.
+     * @param start Index of the first character after the opening <code>&lt;</code>.
+     * @param end Index of the closing <code>&gt;</code>.
+     * @param body Builder for the plain text body.
+     * @param markdown Builder for the markdown source of the HTML body.
+     * @return If the token was recognised and appended, if false nothing was appended.
+     * @throws IOException If there was an error while looking up an emote in the database.
+     */
+    private boolean appendToken(Message message, String raw, int start, int end, StringBuilder body, StringBuilder markdown) throws IOException {
+        if(start >= end) return false;
+
+        var first = raw.charAt(start);
+        if(first == '@') {
+            var kind = start + 1 < end ? raw.charAt(start + 1) : '@';
+            var idStart = (kind == '!' || kind == '&') ? start + 2 : start + 1;
+            var id = parseSnowflake(raw, idStart, end);
+            if(id < 0) return false;
+
+            if(kind == '&') {
+                var role = findRole(message, id);
+                if(role == null) return false;
+
+                body.append('@').append(role.getName());
+                markdown.append('@');
+                appendEscaped(markdown, role.getName());
+                return true;
+            }
+
+            var member = findMember(message, id);
+            if(member == null) return false;
+
+            // For some reason the ! is only present when mentioning a nickname, not a username
+            body.append('@').append(kind == '!' ? member.getEffectiveName() : member.getUser().getName());
+            markdown.append("<a href=\"https://matrix.to/#/").append(this.bridge.getUserIdForDiscordUser(member.getUser())).append("\">");
+            appendEscaped(markdown, member.getEffectiveName());
+            markdown.append("</a>");
+            return true;
+        } else if(first == '#') {
+            var channel = findChannel(message, parseSnowflake(raw, start + 1, end));
+            if(channel == null) return false;
+
+            body.append('#').append(channel.getName());
+            markdown.append('#');
+            appendEscaped(markdown, channel.getName());
+            return true;
+        } else if(first == ':' || (first == 'a' && start + 1 < end && raw.charAt(start + 1) == ':')) { // Static or animated emote
+            var nameStart = first == ':' ? start + 1 : start + 2;
+            var separator = raw.indexOf(':', nameStart);
+            if(separator < 0 || separator >= end) return false;
+
+            var id = parseSnowflake(raw, separator + 1, end);
+            if(id < 0) return false;
+
+            var name = raw.substring(nameStart, separator);
+            var emote = findEmote(message, id);
+            var mxcEmojiUrl = emote != null ? this.bridge.getEmojiManager().getMXCEmoji(emote) : null;
+
+            body.append(':').append(name).append(':');
+            if(mxcEmojiUrl != null) {
+                markdown.append("<img src=\"");
+                appendAttribute(markdown, mxcEmojiUrl);
+                markdown.append("\" alt=\":");
+                appendAttribute(markdown, name);
+                markdown.append(":\"/>");
+            } else {
+                markdown.append(':');
+                appendEscaped(markdown, name);
+                markdown.append(':');
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Appends text from Discord, like a name, to the markdown source so it's shown as it is,
+     * instead of being read as markdown or HTML.
+     */
+    private static void appendEscaped(StringBuilder markdown, String text) {
+        for(int i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            if(c == '&' || c == '<' || c == '>' || c == '"') {
+                appendEntity(markdown, c);
+            } else {
+                if(isAsciiPunctuation(c)) markdown.append('\\'); // Commonmark allows escaping any ASCII punctuation
+                markdown.append(c);
+            }
+        }
+    }
+
+    /**
+     * Appends text from Discord to an attribute of inline HTML in the markdown source.
+     */
+    private static void appendAttribute(StringBuilder markdown, String text) {
+        for(int i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+            if(c == '&' || c == '<' || c == '>' || c == '"') {
+                appendEntity(markdown, c);
+            } else {
+                markdown.append(c);
+            }
+        }
+    }
+
+    private static void appendEntity(StringBuilder builder, char c) {
+        switch (c) {
+            case '&': builder.append("&amp;"); break;
+            case '<': builder.append("&lt;"); break;
+            case '>': builder.append("&gt;"); break;
+            default: builder.append("&quot;"); break;
+        }
+    }
+
+    private static boolean isAsciiPunctuation(char c) {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+    }
+
+    private static long parseSnowflake(String raw, int start, int end) {
+        if(start >= end || end - start > 20) return -1;
+
+        long id = 0;
+        for(int i = start; i < end; i++) {
+            var c = raw.charAt(i);
+            if(c < '0' || c > '9') return -1;
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    private static Member findMember(Message message, long id) {
+        for(var member : message.getMentionedMembers()) {
+            if(member.getUser().getIdLong() == id) return member;
+        }
+        return null;
+    }
+
+    private static Role findRole(Message message, long id) {
+        for(var role : message.getMentionedRoles()) {
+            if(role.getIdLong() == id) return role;
+        }
+        return null;
+    }
+
+    private static TextChannel findChannel(Message message, long id) {
+        for(var channel : message.getMentionedChannels()) {
+            if(channel.getIdLong() == id) return channel;
+        }
+        return null;
+    }
+
+    private static Emote findEmote(Message message, long id) {
+        for(var emote : message.getEmotes()) {
+            if(emote.getIdLong() == id) return emote;
+        }
+        return null;
+    }
+
+    private static String newlinesToBreaks(String html) {
+        var builder = new StringBuilder(html.length() + 16);
+        for(int i = 0; i < html.length(); i++) {
+            var c = html.charAt(i);
+            if(c == '\n') {
+                builder.append("<br>");
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -1,62 +1,237 @@
 package io.github.jython234.matrix.bridges.discord.handler;
 
 import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+import io.github.jython234.matrix.bridges.discord.ImageScaler;
 import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
-import io.github.jython234.matrix.bridges.discord.Util;
 import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.entities.Emote;
-import org.apache.commons.io.FileUtils;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Syncs Discord custom emotes to Matrix, so they can be displayed in bridged messages.
+ *
+ * Emotes are synced in a pipeline with separate download, scale and upload stages, each
+ * with its own bounded pool of workers. The mxc:// URLs of synced emotes are kept in memory, and
+ * stored in the database as a single index entry so they can be loaded with one lookup.
+ *
+ * @author jython234
+ */
 public class EmojiManager {
+    private static final String INDEX_KEY = "emote-index";
+    private static final String LEGACY_KEY_PREFIX = "emote-"; // Emotes used to be stored under a key each
+
+    private static final int EMOTE_SIZE = 32; // Emotes are displayed at 32x32
+
+    private static final int DOWNLOAD_WORKERS = 4;
+    private static final int SCALE_WORKERS = 2;
+    private static final int UPLOAD_WORKERS = 2;
+
     private MatrixDiscordBridge bridge;
 
+    private final Map<String, String> emotes = new ConcurrentHashMap<>(); // Emote ID -> mxc:// URL
+    private volatile boolean indexLoaded = false;
+
+    private final ExecutorService downloadPool;
+    private final ExecutorService scalePool;
+    private final ExecutorService uploadPool;
+
     public EmojiManager(MatrixDiscordBridge bridge) {
         this.bridge = bridge;
+
+        this.downloadPool = createPool("EmoteDownloadWorker", DOWNLOAD_WORKERS);
+        this.scalePool = createPool("EmoteScaleWorker", SCALE_WORKERS);
+        this.uploadPool = createPool("EmoteUploadWorker", UPLOAD_WORKERS);
     }
 
-    public void syncEmojis(JDA jda) {
-        this.bridge.getLogger().info("Syncing custom emotes...");
-        jda.getGuilds().forEach(guild -> guild.getEmotes().forEach(this::syncEmoji));
+    private static ExecutorService createPool(String name, int threads) {
+        var threadCount = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable);
+            thread.setName(name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    private void downloadEmoteToFile(Emote emote, File file) throws IOException {
-        FileUtils.copyURLToFile(new URL(emote.getImageUrl()), file);
+    /**
+     * Syncs all the custom emotes of every guild that haven't been synced yet, in the background.
+     * @param jda The JDA instance to get the guilds from.
+     * @return A future that completes once all the emotes have been synced.
+     */
+    public CompletableFuture<Void> syncEmojis(JDA jda) {
+        try {
+            this.loadIndex(jda);
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to load the custom emote index, not syncing emotes.");
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        List<Emote> toSync = new ArrayList<>();
+        jda.getGuilds().forEach(guild -> guild.getEmotes().forEach(emote -> {
+            if(!this.emotes.containsKey(emote.getId())) toSync.add(emote);
+        }));
+
+        this.bridge.getLogger().info("Syncing " + toSync.size() + " custom emotes...");
+
+        var start = System.currentTimeMillis();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(toSync.size());
+        toSync.forEach(emote -> tasks.add(this.runPipeline(emote)));
+
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).thenRun(() -> {
+            this.saveIndex();
+            this.bridge.getLogger().info("Custom emote sync complete in " + (System.currentTimeMillis() - start) / 1000 + " seconds.");
+        });
     }
 
+    /**
+     * Syncs a single custom emote in the background, if it hasn't been synced yet.
+     * @param emote The emote.
+     */
     public void syncEmoji(Emote emote) {
         try {
-            if(this.bridge.getDatabase().getExtraData("emote-"+emote.getId()) == null) {
-                var tmpFile = new File(this.bridge.getTmpDir() + File.separator + emote.getId() + ".png");
-                downloadEmoteToFile(emote, tmpFile);
+            if(!this.loadIndex(this.bridge.getJDA())) return; // It will be synced with the rest once JDA is ready
+            if(this.emotes.containsKey(emote.getId())) return;
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to load the custom emote index, not syncing emote " + emote.getId());
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
 
-                var scaledFile = new File(this.bridge.getTmpDir() + File.separator + emote.getId() + "-scaled.png");
-                Util.scaleImageAndSave(tmpFile, scaledFile);
+        this.runPipeline(emote).thenRun(this::saveIndex);
+    }
 
-                var mxcUrl = this.bridge.getClientManager().uploadMatrixFromFile(scaledFile.getPath());
-                tmpFile.delete();
-                scaledFile.delete();
+    private CompletableFuture<Void> runPipeline(Emote emote) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                var connection = new URL(emote.getImageUrl()).openConnection();
+                connection.setRequestProperty("User-Agent", MatrixDiscordBridge.SOFTWARE + "/" + MatrixDiscordBridge.SOFTWARE_VERSION); // Discord's CDN rejects the default Java user agent
 
-                this.bridge.getDatabase().putExtraData("emote-" + emote.getId(), mxcUrl);
+                try(var in = connection.getInputStream()) {
+                    return in.readAllBytes();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-        } catch (MatrixNetworkException | IOException e) {
-            this.bridge.getLogger().warn("Failed to sync custom emote " + emote.getId() + " :" + emote.getName() + ":");
-            this.bridge.getLogger().error(e.getClass() + ": " + e.getMessage());
-            e.printStackTrace();
-        }
+        }, this.downloadPool).thenApplyAsync(data -> {
+            try {
+                return ImageScaler.scale(data, EMOTE_SIZE);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, this.scalePool).thenAcceptAsync(scaled -> {
+            try {
+                var mxcUrl = this.bridge.getMediaCache().uploadBytes(scaled.getData(), scaled.getContentType(), emote.getName() + "." + scaled.getExtension());
+                this.emotes.put(emote.getId(), mxcUrl);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (MatrixNetworkException e) {
+                throw new CompletionException(e);
+            }
+        }, this.uploadPool).handle((result, throwable) -> {
+            if(throwable != null) {
+                var cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                this.bridge.getLogger().warn("Failed to sync custom emote " + emote.getId() + " :" + emote.getName() + ":");
+                this.bridge.getLogger().error(cause.getClass() + ": " + cause.getMessage());
+                cause.printStackTrace();
+            }
+            return null;
+        });
     }
 
     public void deleteEmoji(Emote emote) throws IOException {
-        this.bridge.getDatabase().deleteExtraData("emote-" + emote.getId());
+        if(this.loadIndex(this.bridge.getJDA()) && this.emotes.remove(emote.getId()) != null) {
+            this.saveIndex();
+        }
+        this.bridge.getDatabase().deleteExtraData(LEGACY_KEY_PREFIX + emote.getId());
     }
 
     public String getMXCEmoji(Emote emote) throws IOException {
-        return (String) this.bridge.getDatabase().getExtraData("emote-" + emote.getId());
+        if(!this.loadIndex(this.bridge.getJDA())) {
+            return (String) this.bridge.getDatabase().getExtraData(LEGACY_KEY_PREFIX + emote.getId()); // Not moved into the index yet
+        }
+        return this.emotes.get(emote.getId());
+    }
+
+    /**
+     * Loads the index of synced emotes from the database, if it hasn't been loaded yet. Emotes
+     * stored under their own key by older versions are moved into the index, and their old keys are deleted.
+     * @param jda The JDA instance to find the emotes stored by older versions, may be null.
+     * @return If the index is loaded. It can't be loaded if there is no index yet and JDA isn't available to move the old keys.
+     */
+    private boolean loadIndex(JDA jda) throws IOException {
+        if(this.indexLoaded) return true;
+
+        synchronized (this.emotes) {
+            if(this.indexLoaded) return true;
+
+            var index = (String) this.bridge.getDatabase().getExtraData(INDEX_KEY);
+            if(index != null) {
+                for(var line : index.split("\n")) {
+                    var separator = line.indexOf('=');
+                    if(separator > 0) this.emotes.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+                this.indexLoaded = true;
+                return true;
+            }
+
+            if(jda == null) return false; // Try again once JDA is ready, so the old keys aren't skipped
+
+            // No index yet, build it from the old keys once
+            List<String> legacyKeys = new ArrayList<>();
+            for(var guild : jda.getGuilds()) {
+                for(var emote : guild.getEmotes()) {
+                    var mxcUrl = (String) this.bridge.getDatabase().getExtraData(LEGACY_KEY_PREFIX + emote.getId());
+                    if(mxcUrl != null) {
+                        this.emotes.put(emote.getId(), mxcUrl);
+                        legacyKeys.add(LEGACY_KEY_PREFIX + emote.getId());
+                    }
+                }
+            }
+
+            this.writeIndex(); // Only delete the old keys once the index has them
+            this.indexLoaded = true;
+
+            for(var key : legacyKeys) {
+                this.bridge.getDatabase().deleteExtraData(key);
+            }
+            this.bridge.getLogger().info("Moved " + legacyKeys.size() + " custom emotes into the emote index.");
+            return true;
+        }
+    }
+
+    private void saveIndex() {
+        if(!this.indexLoaded) return; // Would overwrite emotes that haven't been loaded
+
+        try {
+            this.writeIndex();
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to save the custom emote index");
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        synchronized (this.emotes) {
+            var builder = new StringBuilder(this.emotes.size() * 64);
+            this.emotes.forEach((id, mxcUrl) -> builder.append(id).append('=').append(mxcUrl).append('\n'));
+
+            this.bridge.getDatabase().putExtraData(INDEX_KEY, builder.toString());
+        }
     }
 }
@@ -0,0 +1,154 @@
+package io.github.jython234.matrix.bridges.discord.handler;
+
+import net.dv8tion.jda.core.entities.Emote;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.User;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-guild index of custom emote names and usernames, used to rewrite
+ * <code>:emote:</code> and <code>username:</code> in Matrix messages into Discord
+ * emotes and mentions.
+ *
+ * The index of a guild is built the first time a message is rewritten for it, and is kept
+ * up to date by the emote and member events from Discord.
+ *
+ * @author jython234
+ */
+public class MentionIndex {
+    private static final int MAX_NAME_LENGTH = 32; // Discord limits both emote names and usernames to 32 characters
+
+    private final Map<Long, GuildIndex> guilds = new ConcurrentHashMap<>();
+
+    private GuildIndex getIndex(Guild guild) {
+        return this.guilds.computeIfAbsent(guild.getIdLong(), id -> {
+            var index = new GuildIndex();
+            guild.getEmotes().forEach(index::putEmote);
+            guild.getMembers().forEach(member -> index.users.put(member.getUser().getName(), member.getUser().getIdLong()));
+            return index;
+        });
+    }
+
+    /**
+     * Rewrites custom emotes and mentions in a Matrix message into Discord markup, in one scan of the message.
+     * @param guild The guild the message is being sent to.
+     * @param text The message.
+     * @return The rewritten message.
+     */
+    public String rewrite(Guild guild, String text) {
+        if(text.indexOf(':') < 0) return text; // Nothing to rewrite
+
+        var index = this.getIndex(guild);
+        var out = new StringBuilder(text.length() + 16);
+        var floor = 0; // Text before this position in the output was already rewritten
+
+        var i = 0;
+        while(i < text.length()) {
+            var c = text.charAt(i);
+            if(c == ':') {
+                // First check for an emote, :name:
+                var close = findEmoteEnd(text, i + 1);
+                if(close > 0) {
+                    var emote = index.emotes.get(text.substring(i + 1, close));
+                    if(emote != null) {
+                        out.append(emote);
+                        floor = out.length();
+                        i = close + 1;
+                        continue;
+                    }
+                }
+
+                // Then for a mention, username:
+                var start = findUsernameStart(index, out, floor);
+                if(start >= 0) {
+                    var userId = index.users.get(out.substring(start));
+                    out.setLength(start);
+                    out.append("<@!").append(userId).append('>');
+                    floor = out.length();
+                    i++;
+                    continue;
+                }
+            }
+
+            out.append(c);
+            i++;
+        }
+
+        return out.toString();
+    }
+
+    private static int findEmoteEnd(String text, int nameStart) {
+        var limit = Math.min(text.length(), nameStart + MAX_NAME_LENGTH + 1);
+        for(int i = nameStart; i < limit; i++) {
+            var c = text.charAt(i);
+            if(c == ':') return i > nameStart ? i : -1;
+            if(Character.isWhitespace(c)) return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the longest indexed username that the output ends with, starting at a word boundary.
+     * @return The start of the username in the output, or -1 if there isn't one.
+     */
+    private static int findUsernameStart(GuildIndex index, StringBuilder out, int floor) {
+        for(int start = Math.max(floor, out.length() - MAX_NAME_LENGTH); start < out.length(); start++) {
+            if(start > floor && !Character.isWhitespace(out.charAt(start - 1))) continue;
+
+            if(index.users.containsKey(out.substring(start))) {
+                return start;
+            }
+        }
+        return -1;
+    }
+
+    // Event updates --------------------------------------------
+
+    public void handleEmoteAdded(Emote emote) {
+        var index = this.guilds.get(emote.getGuild().getIdLong());
+        if(index != null) index.putEmote(emote);
+    }
+
+    public void handleEmoteRemoved(Emote emote) {
+        var index = this.guilds.get(emote.getGuild().getIdLong());
+        if(index != null) index.emotes.remove(emote.getName());
+    }
+
+    public void handleEmoteRenamed(Emote emote, String oldName) {
+        var index = this.guilds.get(emote.getGuild().getIdLong());
+        if(index != null) {
+            index.emotes.remove(oldName);
+            index.putEmote(emote);
+        }
+    }
+
+    public void handleMemberJoined(Member member) {
+        var index = this.guilds.get(member.getGuild().getIdLong());
+        if(index != null) index.users.put(member.getUser().getName(), member.getUser().getIdLong());
+    }
+
+    public void handleMemberLeft(Guild guild, User user) {
+        var index = this.guilds.get(guild.getIdLong());
+        if(index != null) index.users.remove(user.getName(), user.getIdLong());
+    }
+
+    public void handleUserRenamed(User user, String oldName) {
+        this.guilds.values().forEach(index -> {
+            if(index.users.remove(oldName, user.getIdLong())) {
+                index.users.put(user.getName(), user.getIdLong());
+            }
+        });
+    }
+
+    private static class GuildIndex {
+        final Map<String, String> emotes = new ConcurrentHashMap<>(); // Emote name -> Discord emote markup
+        final Map<String, Long> users = new ConcurrentHashMap<>(); // Username -> User ID
+
+        void putEmote(Emote emote) {
+            this.emotes.put(emote.getName(), (emote.isAnimated() ? "<a:" : "<:") + emote.getName() + ":" + emote.getId() + ">");
+        }
+    }
+}
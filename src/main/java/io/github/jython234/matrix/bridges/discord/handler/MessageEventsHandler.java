@@ -3,19 +3,25 @@ package io.github.jython234.matrix.bridges.discord.handler;
 import io.github.jython234.matrix.appservice.event.room.message.MessageContent;
 import io.github.jython234.matrix.appservice.event.room.message.MessageMatrixEvent;
 import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
+import io.github.jython234.matrix.bridge.network.MatrixNetworkResult;
+import io.github.jython234.matrix.bridge.network.response.SendMessageResponse;
 import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
+import io.github.jython234.matrix.bridges.discord.MatrixMediaClient;
+import io.github.jython234.matrix.bridges.discord.MediaCache;
+import io.github.jython234.matrix.bridges.discord.MetricsRegistry;
 import io.github.jython234.matrix.bridges.discord.Util;
 import net.dv8tion.jda.core.MessageBuilder;
 import net.dv8tion.jda.core.entities.*;
+import net.dv8tion.jda.core.events.message.guild.GuildMessageDeleteEvent;
 import net.dv8tion.jda.core.events.message.guild.GuildMessageReceivedEvent;
-import org.commonmark.node.Node;
-import org.commonmark.parser.Parser;
-import org.commonmark.renderer.html.HtmlRenderer;
+import net.dv8tion.jda.core.events.message.guild.GuildMessageUpdateEvent;
+import net.dv8tion.jda.core.exceptions.HttpException;
 
 import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.File;
 import java.io.IOException;
 import java.net.URLConnection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class handles bridging messages between Matrix and Discord.
@@ -23,73 +29,72 @@ import java.net.URLConnection;
  * @author jython234
  */
 public class MessageEventsHandler {
-    private MatrixDiscordBridge bridge;
-    private Parser parser;
-    private HtmlRenderer renderer;
-
-    public MessageEventsHandler(MatrixDiscordBridge bridge) {
-        this.bridge = bridge;
-        this.parser = Parser.builder().build();
-        this.renderer = HtmlRenderer.builder().build();
-    }
+    private static final double[] ATTACHMENT_BUCKETS = {16 * 1024, 128 * 1024, 512 * 1024, 1024 * 1024, 4 * 1024 * 1024, 8 * 1024 * 1024, 32 * 1024 * 1024};
 
-    private MessageContent getContentMarkdownToHtml(Message message) throws IOException {
-        var inputText = message.getContentRaw();
-        var hasMentions = false;
-        var hasEmotes = false;
+    private MatrixDiscordBridge bridge;
+    private DiscordMessageFormatter formatter;
 
-        // First determine if the message has mentions or emotes
+    private final MetricsRegistry.Counter discordToMatrixMessages;
+    private final MetricsRegistry.Counter matrixToDiscordMessages;
+    private final MetricsRegistry.Histogram discordToMatrixAttachments;
+    private final MetricsRegistry.Histogram matrixToDiscordAttachments;
 
-        for(Member member : message.getMentionedMembers()) {
-            hasMentions = true;
+    private final Set<Long> deletedFromMatrix = ConcurrentHashMap.newKeySet(); // Discord messages being deleted for a Matrix redaction
 
-            // For some reason the ! is only present when mentioning a nickname, not a username
-            inputText = inputText.replaceAll("<@!"+member.getUser().getId()+">", "@" + member.getEffectiveName());
-            inputText = inputText.replaceAll("<@"+member.getUser().getId()+">", "@" + member.getUser().getName());
-        }
+    public MessageEventsHandler(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+        this.formatter = new DiscordMessageFormatter(bridge);
 
-        for(Emote emote : message.getEmotes()) {
-            hasEmotes = true;
-            inputText = inputText.replaceAll("<:" + emote.getName() + ":" + emote.getId() + ">", ":" + emote.getName() + ":");
-        }
+        var metrics = bridge.getMetrics();
+        this.discordToMatrixMessages = metrics.counter("messages_bridged_total", "Messages sent to the other side, by direction.", "direction", "discord_to_matrix");
+        this.matrixToDiscordMessages = metrics.counter("messages_bridged_total", "Messages sent to the other side, by direction.", "direction", "matrix_to_discord");
+        this.discordToMatrixAttachments = metrics.histogram("attachment_bytes", "Size of bridged attachments, by direction.", ATTACHMENT_BUCKETS, "direction", "discord_to_matrix");
+        this.matrixToDiscordAttachments = metrics.histogram("attachment_bytes", "Size of bridged attachments, by direction.", ATTACHMENT_BUCKETS, "direction", "matrix_to_discord");
+    }
 
-        if(hasMentions || hasEmotes || message.getContentDisplay().contains("*") || message.getContentDisplay().contains("_") || message.getContentDisplay().contains("~")) {
-            Node doc = this.parser.parse(inputText);
-            var text = this.renderer.render(doc);
+    private UploadedAttachment uploadDiscordAttachment(Message.Attachment attachment) throws IOException, MatrixNetworkException {
+        String mimetype;
+        String mxcURL;
+        Long audioDuration = null;
 
-            var content = new MessageContent.FormattedTextMessageContent();
-            content.body = inputText;
-            content.format = MessageContent.FormattedTextMessageContent.FORMAT_TYPE_HTML;
-            content.formattedBody = text.trim().replaceAll("\n", "<br>");
+        // Stream the attachment from Discord straight into the Matrix upload, only the start is buffered to detect the type
+        try(var in = attachment.getInputStream()) {
+            var peeked = MatrixMediaClient.peek(in);
 
-            for(Member member : message.getMentionedMembers()) {
-                var userId = "@!discord_" + member.getUser().getId() + ":" + this.bridge.getConfig().getMatrixDomain();
-                content.formattedBody = content.formattedBody.replaceAll("@"+member.getEffectiveName(), "<a href=\"https://matrix.to/#/" + userId + "\">" + member.getEffectiveName() + "</a>");
+            mimetype = peeked.guessContentType();
+            if(mimetype == null) {
+                mimetype = URLConnection.guessContentTypeFromName(attachment.getFileName());
+            }
+            if(mimetype == null) {
+                mimetype = "application/octet-stream";
             }
 
-            for(Emote emote : message.getEmotes()) {
-                var mxcEmojiUrl = this.bridge.getEmojiManager().getMXCEmoji(emote);
-                content.formattedBody = content.formattedBody.replaceAll(":" + emote.getName() + ":", "<img src=\"" + mxcEmojiUrl + "\" alt=\":" + emote.getName() + ":\"/>");
+            if(mimetype.startsWith("audio")) {
+                try {
+                    audioDuration = Util.getAudioDuration(peeked.headerStream());
+                } catch (UnsupportedAudioFileException | IOException e) {
+                    // File type is unsupported or the header didn't fit in the peeked bytes, oh well, we'll just leave the duration blank then.
+                }
             }
-            return content;
-        } else {
-            // There aren't any markdown characters, emotes, or mentions so we can send a plain message
-            var content = new MessageContent.TextMessageContent();
 
-            content.body = message.getContentDisplay();
-            return content;
+            if(attachment.getSize() <= MediaCache.MAX_BUFFERED_SIZE) {
+                // Small enough to hash, so the upload is skipped if the same file was posted before
+                mxcURL = this.bridge.getMediaCache().uploadBytes(peeked.getStream().readAllBytes(), mimetype, attachment.getFileName());
+            } else {
+                mxcURL = this.bridge.getMediaClient().upload(peeked.getStream(), mimetype, attachment.getFileName(), attachment.getSize()); // Upload to Matrix
+            }
         }
+
+        return new UploadedAttachment(mxcURL, mimetype, audioDuration);
     }
 
     private MessageContent getContentForDiscordAttachment(String body, Message.Attachment attachment) throws IOException, MatrixNetworkException {
-        var mimetype = URLConnection.guessContentTypeFromStream(attachment.getInputStream());
-        if(mimetype == null) {
-            mimetype = URLConnection.guessContentTypeFromName(attachment.getFileName());
-        }
-        var downloadedFile = new File(this.bridge.getTmpDir().getPath() + File.separator + attachment.getFileName());
-        attachment.download(downloadedFile); // Download the attachment to the tmp dir.
+        this.discordToMatrixAttachments.record(attachment.getSize());
 
-        var mxcURL = this.bridge.getClientManager().uploadMatrixFromFile(downloadedFile.getPath()); // Upload to Matrix
+        var uploaded = this.uploadDiscordAttachment(attachment);
+        String mimetype = uploaded.mimetype;
+        String mxcURL = uploaded.mxcUrl;
+        Long audioDuration = uploaded.duration;
 
         MessageContent returnContent;
         if(attachment.isImage() && mimetype.startsWith("image")) {
@@ -113,10 +118,8 @@ public class MessageEventsHandler {
                 content.body = attachment.getFileName();
                 content.url = mxcURL;
 
-                try {
-                    content.info.duration = Util.getAudioFileDuration(downloadedFile);
-                } catch (UnsupportedAudioFileException e) {
-                    // File type is unsupported, oh well, we'll just leave the duration blank then.
+                if(audioDuration != null) {
+                    content.info.duration = audioDuration;
                 }
 
                 content.info.mimetype = mimetype;
@@ -149,104 +152,102 @@ public class MessageEventsHandler {
             }
         }
 
-        downloadedFile.delete(); // Delete the temporary downloaded file, as we don't need it anymore
-        
         return returnContent;
     }
 
-    private void sendMatrixMessageViaWebhook(MessageMatrixEvent event, Webhook webhook) throws MatrixNetworkException {
-        var client = webhook.newClient().build();
-
-        if(event.content.body.contains(":")) {
-            // Replace any custom emotes in the message
-            for(var emote : webhook.getChannel().getGuild().getEmotes()) {
-                event.content.body = event.content.body.replaceAll(":" + emote.getName() + ":", "<:" + emote.getName() + ":" + emote.getId() + ">");
-            }
-
-            // Replace any mentions in the message
-            for (Member member : webhook.getChannel().getMembers()) {
-                if(event.content.body.contains(member.getUser().getName())) {
-                    event.content.body = event.content.body.replaceAll(member.getUser().getName() + ":", "<@!" + member.getUser().getId() + ">");
-                }
-            }
+    private long sendMatrixFile(WebhookSender sender, String mxcUrl, String filename) throws IOException, MatrixNetworkException {
+        // Read the file from Matrix into memory, it's under Discord's 8MB limit so it doesn't need to go to disk
+        try(var in = this.bridge.getMediaClient().download(mxcUrl)) {
+            var data = in.readAllBytes();
+            this.matrixToDiscordAttachments.record(data.length);
+            return sender.sendFile(filename, data);
         }
+    }
 
-        if(event.content instanceof MessageContent.TextMessageContent || event.content instanceof MessageContent.NoticeMessageContent) {
-            client.send(event.content.body);
-        } else if(event.content instanceof MessageContent.EmoteMessageContent) {
-            client.send("* *" + event.content.body + "*");
-        } else if(event.content instanceof MessageContent.ImageMessageContent) {
-            var content = (MessageContent.ImageMessageContent) event.content;
-
-            var file = new File(this.bridge.getTmpDir() + File.separator + content.body);
-            this.bridge.getClientManager().downloadMatrixFile(content.url, file.getPath());
-
-            client.send(file);
-
-            file.delete();
-        } else if(event.content instanceof MessageContent.VideoMessageContent) {
-            var content = (MessageContent.VideoMessageContent) event.content;
-            if(content.info.size >= (8 * 1024 * 1024)) { // If greater than 8MB then just send download link
-                client.send("**Large Video:** " + this.bridge.getConfig().getPublicServerURL() + "/_matrix/media/v1/download/" + content.url.replaceAll("mxc://", ""));
-            } else {
-                var file = new File(this.bridge.getTmpDir() + File.separator + content.body);
-                this.bridge.getClientManager().downloadMatrixFile(content.url, file.getPath());
-
-                client.send(file);
-
-                file.delete();
-            }
-        } else if(event.content instanceof MessageContent.FileMessageContent) {
-            var content = (MessageContent.FileMessageContent) event.content;
-            if(content.info.size >= (8 * 1024 * 1024)) { // If greater than 8MB then just send download link
-                client.send("**Large File**: " + this.bridge.getConfig().getPublicServerURL() + "/_matrix/media/v1/download/" + content.url.replaceAll("mxc://", ""));
+    private void sendMatrixMessageViaWebhook(MessageMatrixEvent event, Webhook webhook) throws IOException, MatrixNetworkException {
+        var sender = this.bridge.getWebhookManager().getClient(webhook); // Pooled, shared with other messages to the webhook
+        long messageId;
+
+        // Replace any custom emotes and mentions in the message
+        event.content.body = this.bridge.getMentionIndex().rewrite(webhook.getChannel().getGuild(), event.content.body);
+
+        try {
+            if(event.content instanceof MessageContent.TextMessageContent || event.content instanceof MessageContent.NoticeMessageContent) {
+                messageId = sender.send(event.content.body);
+            } else if(event.content instanceof MessageContent.EmoteMessageContent) {
+                messageId = sender.send("* *" + event.content.body + "*");
+            } else if(event.content instanceof MessageContent.ImageMessageContent) {
+                var content = (MessageContent.ImageMessageContent) event.content;
+
+                messageId = this.sendMatrixFile(sender, content.url, content.body);
+            } else if(event.content instanceof MessageContent.VideoMessageContent) {
+                var content = (MessageContent.VideoMessageContent) event.content;
+                if(content.info.size >= (8 * 1024 * 1024)) { // If greater than 8MB then just send download link
+                    messageId = sender.send("**Large Video:** " + this.bridge.getConfig().getPublicServerURL() + "/_matrix/media/v1/download/" + content.url.replaceAll("mxc://", ""));
+                } else {
+                    messageId = this.sendMatrixFile(sender, content.url, content.body);
+                }
+            } else if(event.content instanceof MessageContent.FileMessageContent) {
+                var content = (MessageContent.FileMessageContent) event.content;
+                if(content.info.size >= (8 * 1024 * 1024)) { // If greater than 8MB then just send download link
+                    messageId = sender.send("**Large File**: " + this.bridge.getConfig().getPublicServerURL() + "/_matrix/media/v1/download/" + content.url.replaceAll("mxc://", ""));
+                } else {
+                    messageId = this.sendMatrixFile(sender, content.url, content.body);
+                }
+            } else if(event.content instanceof MessageContent.AudioMessageContent) {
+                var content = (MessageContent.AudioMessageContent) event.content;
+                if(content.info.size >= (8 * 1024 * 1024)) { // If greater than 8MB then just send download link
+                    messageId = sender.send("**Large Audio File:** " + this.bridge.getConfig().getPublicServerURL() + "/_matrix/media/v1/download/" + content.url.replaceAll("mxc://", ""));
+                } else {
+                    messageId = this.sendMatrixFile(sender, content.url, content.body);
+                }
             } else {
-                var file = new File(this.bridge.getTmpDir() + File.separator + content.body);
-                this.bridge.getClientManager().downloadMatrixFile(content.url, file.getPath());
-
-                client.send(file);
-
-                file.delete();
+                messageId = sender.send("**" + event.content.msgtype + "**: " + event.content.body);
             }
-        } else if(event.content instanceof MessageContent.AudioMessageContent) {
-            var content = (MessageContent.AudioMessageContent) event.content;
-            if(content.info.size >= (8 * 1024 * 1024)) { // If greater than 8MB then just send download link
-                client.send("**Large Audio File:** " + this.bridge.getConfig().getPublicServerURL() + "/_matrix/media/v1/download/" + content.url.replaceAll("mxc://", ""));
-            } else {
-                var file = new File(this.bridge.getTmpDir() + File.separator + content.body);
-                this.bridge.getClientManager().downloadMatrixFile(content.url, file.getPath());
-
-                client.send(file);
-
-                file.delete();
+        } catch (HttpException e) {
+            this.bridge.getMetrics().recordError(e);
+            if(WebhookManager.isUnknownWebhookError(e)) {
+                this.bridge.getWebhookManager().handleUnknownWebhook(webhook.getChannel(), event.sender, webhook.getId());
+                return;
             }
-        } else {
-            client.send("**" + event.content.msgtype + "**: " + event.content.body);
+            this.bridge.getLogger().warn("Discord refused message " + event.eventId + " from " + event.sender + "!");
+            this.bridge.getLogger().error("HttpException: " + e.getMessage());
+            return;
         }
 
-        client.close();
+        this.matrixToDiscordMessages.increment();
+        this.bridge.getMessageIdStore().put(messageId, event.eventId); // So it can be deleted when the event is redacted
     }
 
     public void bridgeDiscordToMatrix(GuildMessageReceivedEvent event) throws IOException, MatrixNetworkException {
         //this.bridge.getLogger().info("Discord message by, " + event.getAuthor().getName() + ", in " + event.getChannel().getName() + " : " + event.getMessage().getContentRaw());
-        var roomId = Util.getRoomIdForChannel(event.getChannel());
+        var room = this.bridge.getRoomIndex().getRoomForChannel(event.getChannel());
+        if(room == null || room.getMatrixId().equals("")) return; // This channel isn't bridged
 
-        var room = this.bridge.getDatabase().getRoom(roomId);
-        var client = this.bridge.getClientManager().getClientForUser(this.bridge.getUserIdForDiscordUser(event.getAuthor()));
+        if(event.getMember() != null) { // Null for webhook messages
+            this.bridge.getPuppetProvisioner().ensureProvisioned(event.getMember()); // They're active, so make sure they're set up on Matrix
+            this.bridge.getConnector().ensureJoined(room.getMatrixId(), event.getMember()); // The room may have been bridged before they were joined
+        }
+
+        var userId = this.bridge.getUserIdForDiscordUser(event.getAuthor());
+        var client = this.bridge.getClientManager().getClientForUser(userId);
 
-        client.setTyping(room.getMatrixId(), false); // We're sending a message finally so we aren't typing anymore if we were before
+        if(this.bridge.getUserEventsHandler().getTypingTracker().stopTyping(userId, room.getMatrixId())) {
+            client.setTyping(room.getMatrixId(), false); // We're sending a message finally so we aren't typing anymore
+        }
 
         if(event.getMessage().getAttachments().size() > 0) {
             event.getMessage().getAttachments().forEach((attachment) -> {
                 try {
                     // Send the message caption if there is one
                     if(!event.getMessage().getContentDisplay().equals("")) {
-                        client.sendMessage(room.getMatrixId(), getContentMarkdownToHtml(event.getMessage()));
+                        this.recordEventId(event.getMessageIdLong(), client.sendMessage(room.getMatrixId(), this.formatter.format(event.getMessage())));
                     }
 
                     // Now send the actual attachment
-                    client.sendMessage(room.getMatrixId(), getContentForDiscordAttachment(event.getMessage().getContentDisplay(), attachment));
+                    this.recordEventId(event.getMessageIdLong(), client.sendMessage(room.getMatrixId(), getContentForDiscordAttachment(event.getMessage().getContentDisplay(), attachment)));
                 } catch (MatrixNetworkException | IOException e) {
+                    this.bridge.getMetrics().recordError(e);
                     this.bridge.getLogger().error("Failed to send attachment message!");
                     this.bridge.getLogger().error(e.getClass().getName() + ": " + e.getMessage());
                     e.printStackTrace();
@@ -254,42 +255,132 @@ public class MessageEventsHandler {
             });
         } else {
             // No attachments or anything, just a plain old text message
-            client.sendMessage(room.getMatrixId(), getContentMarkdownToHtml(event.getMessage()));
+            this.recordEventId(event.getMessageIdLong(), client.sendMessage(room.getMatrixId(), this.formatter.format(event.getMessage())));
+        }
+    }
+
+    private void recordEventId(long discordId, MatrixNetworkResult<SendMessageResponse> result) {
+        if(!result.successful) {
+            this.bridge.getMetrics().recordError("matrix");
+            return;
+        }
+
+        this.discordToMatrixMessages.increment();
+        if(result.result != null && result.result.eventId != null) {
+            this.bridge.getMessageIdStore().put(discordId, result.result.eventId);
+        }
+    }
+
+    /**
+     * Removes a message that was deleted on Discord from Matrix as well.
+     * @param event The message delete event from Discord.
+     */
+    public void bridgeDiscordDeletion(GuildMessageDeleteEvent event) throws IOException, MatrixNetworkException {
+        var room = this.bridge.getRoomIndex().getRoomForChannel(event.getChannel());
+        if(room == null || room.getMatrixId().equals("")) return; // This channel isn't bridged
+
+        if(this.deletedFromMatrix.remove(event.getMessageIdLong())) return; // Deleted because it was redacted on Matrix
+
+        var eventIds = this.bridge.getMessageIdStore().getEventIds(event.getMessageIdLong());
+        if(eventIds.isEmpty()) return; // Not bridged, or too old to remember
+
+        // The bridge bot is an admin in bridged rooms, so it can redact the messages of any puppet
+        var botUserId = "@" + this.bridge.getAppservice().getRegistration().getSenderLocalpart() + ":" + this.bridge.getConfig().getMatrixDomain();
+        for(var eventId : eventIds) {
+            this.bridge.getEventRedactor().redact(room.getMatrixId(), eventId, botUserId);
         }
     }
 
+    /**
+     * Deletes the Discord message of a Matrix event that was redacted.
+     * @param roomId The ID of the room the event is in.
+     * @param eventId The ID of the redacted event.
+     */
+    public void bridgeMatrixRedaction(String roomId, String eventId) throws IOException {
+        var channelId = this.bridge.getRoomIndex().getChannelIdForMatrixId(roomId);
+        if(channelId == -1) return; // This room isn't bridged
+
+        var channel = this.bridge.getJDA().getTextChannelById(channelId);
+        if(channel == null) return; // The channel is gone
+
+        var messageId = this.bridge.getMessageIdStore().getDiscordId(eventId);
+        if(messageId == -1) return; // Not bridged, or too old to remember
+
+        // Needs the Manage Messages permission for messages from Discord users, webhook messages are the bot's own
+        this.deletedFromMatrix.add(messageId);
+        channel.deleteMessageById(messageId).queue(null, throwable -> {
+            this.deletedFromMatrix.remove(messageId);
+            this.bridge.getMetrics().recordError(throwable);
+            this.bridge.getLogger().warn("Failed to delete Discord message " + messageId + " for redacted event " + eventId);
+            this.bridge.getLogger().error(throwable.getClass().getName() + ": " + throwable.getMessage());
+        });
+    }
+
+    /**
+     * Replaces a message that was edited on Discord on Matrix as well. Messages with attachments
+     * aren't edited, as Discord only lets their text change and it may have been sent with the attachment.
+     * @param event The message update event from Discord.
+     */
+    public void bridgeDiscordEdit(GuildMessageUpdateEvent event) throws IOException, MatrixNetworkException {
+        if(event.getMember() == null) return; // Webhook messages are our own, sent for Matrix users
+        if(!event.getMessage().getAttachments().isEmpty()) return;
+
+        var room = this.bridge.getRoomIndex().getRoomForChannel(event.getChannel());
+        if(room == null || room.getMatrixId().equals("")) return; // This channel isn't bridged
+
+        var eventIds = this.bridge.getMessageIdStore().getEventIds(event.getMessageIdLong());
+        if(eventIds.isEmpty()) return; // Not bridged, or too old to remember
+
+        // Edits are sent as the puppet, only the sender of a message can replace it
+        var userId = this.bridge.getUserIdForDiscordUser(event.getAuthor());
+        this.bridge.getEventEditor().edit(room.getMatrixId(), eventIds.get(0), userId, this.formatter.format(event.getMessage()));
+    }
+
     public void bridgeMatrixToDiscord(MessageMatrixEvent event) throws IOException {
         //this.bridge.getLogger().info("Matrix message from " + event.sender + ", : " + event.content.body);
 
-        var room = this.bridge.getDatabase().getRoomByMatrixId(event.roomId);
-        var channelId = (String) room.getAdditionalData().get("channel");
+        var channelId = this.bridge.getRoomIndex().getChannelIdForMatrixId(event.roomId);
+        if(channelId == -1) return; // This room isn't bridged
+
         var channel = this.bridge.getJDA().getTextChannelById(channelId);
+        if(channel == null) return; // The channel is gone
 
-        var hookId = (String) room.getAdditionalData().get("webhook-" + event.sender);
+        var hookId = this.bridge.getWebhookManager().getWebhookIdForUser(channel, event.sender);
 
-        if(hookId != null) {
-            var webhook = this.bridge.getWebhookManager().getWebhookById(channel, hookId);
-            if(webhook != null) {
-                try {
-                    this.sendMatrixMessageViaWebhook(event, webhook);
-                } catch (MatrixNetworkException e) {
-                    this.bridge.getLogger().warn("Failed to bridge message to discord!");
-                    this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
-                    e.printStackTrace();
+        try {
+            var webhook = hookId != null ? this.bridge.getWebhookManager().getWebhookById(channel, hookId) : null;
+            if(webhook == null) {
+                if(hookId != null) {
+                    // The webhook was deleted on Discord, forget about it so a new one is created
+                    this.bridge.getWebhookManager().handleUnknownWebhook(channel, event.sender, hookId);
                 }
-            }
-        } else {
-            try {
+
                 // Create the webhook
-                var webhook = this.bridge.getWebhookManager().createWebhookForUser(channel, room, event.sender);
-
-                // Send the message
-                this.sendMatrixMessageViaWebhook(event, webhook);
-            } catch (MatrixNetworkException e) {
-                this.bridge.getLogger().warn("Failed to bridge message to discord!");
-                this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
-                e.printStackTrace();
+                webhook = this.bridge.getWebhookManager().createWebhookForUser(channel, event.sender);
             }
+
+            // Send the message
+            this.sendMatrixMessageViaWebhook(event, webhook);
+        } catch (MatrixNetworkException e) {
+            this.bridge.getMetrics().recordError(e);
+            this.bridge.getLogger().warn("Failed to bridge message to discord!");
+            this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * An attachment uploaded to Matrix, with what was detected about it while uploading.
+     */
+    private static class UploadedAttachment {
+        final String mxcUrl;
+        final String mimetype;
+        final Long duration; // Duration of audio in milliseconds, null if it isn't audio or couldn't be read
+
+        UploadedAttachment(String mxcUrl, String mimetype, Long duration) {
+            this.mxcUrl = mxcUrl;
+            this.mimetype = mimetype;
+            this.duration = duration;
         }
     }
 }
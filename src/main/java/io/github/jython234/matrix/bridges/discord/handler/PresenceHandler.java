@@ -2,26 +2,55 @@ package io.github.jython234.matrix.bridges.discord.handler;
 
 import io.github.jython234.matrix.appservice.event.presence.Presence;
 import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
-import io.github.jython234.matrix.bridge.network.MatrixUserClient;
 import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
+import net.dv8tion.jda.core.OnlineStatus;
 import net.dv8tion.jda.core.entities.Member;
 
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Handles updating presences on matrix based on the user's presence on Discord.
  *
+ * Presence changes from Discord are collected per user for a debounce window, so a user flapping
+ * between statuses only results in their final presence being sent. When the window ends the presence
+ * is sent, unless it's the same as the last presence sent for that user. Updates are sent in batches limited
+ * to a maximum amount per second. Matrix expires presences that aren't refreshed, so the presence of users
+ * that are online is sent again every keepalive interval.
+ *
+ * Each batch sends changes first, in the order they became due, then keepalives in the order they were queued.
+ * That way a backlog larger than the rate limit is worked through evenly, and keepalives never hold up real changes.
+ *
  * @author jython234
  */
 public class PresenceHandler {
-    //TODO: Once matrix presences update this needs an overhaul to be less hacky
+    private static final long TICK_INTERVAL = 1000;
 
     private MatrixDiscordBridge bridge;
     private boolean running = false;
     private Thread thread;
 
+    private final Map<Long, SentPresence> lastSent = new ConcurrentHashMap<>(); // Discord user ID -> Last presence sent to Matrix
+    private final Map<Long, PendingPresence> pending = new ConcurrentHashMap<>(); // Discord user ID -> Presence waiting to be sent
+    // The updates in pending, in the order they're sent. Updates that were replaced in pending are skipped when they come up.
+    private final Queue<PendingPresence> changes = new PriorityBlockingQueue<>(64, Comparator.<PendingPresence>comparingLong(update -> update.dueAt).thenComparingLong(update -> update.sequence));
+    private final Queue<PendingPresence> keepalives = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    private final AtomicLong sent = new AtomicLong(0);
+    private final AtomicLong suppressed = new AtomicLong(0);
+
     public PresenceHandler(MatrixDiscordBridge bridge) {
         this.bridge = bridge;
-        this.thread = new Thread(this::updatePresencesLoop);
-        this.thread.setName("PresenceUpdaterThread");
+        this.thread = new Thread(this::writerLoop);
+        this.thread.setName("PresenceWriterThread");
+        this.thread.setDaemon(true);
     }
 
     public void startUpdating() {
@@ -36,33 +65,140 @@ public class PresenceHandler {
         this.thread.interrupt();
     }
 
-    private void updatePresencesLoop() {
+    private void writerLoop() {
         this.bridge.getLogger().info("Discord Presence Updating started.");
-        while(this.running) {
-            this.bridge.getJDA().getGuilds().forEach((guild) -> guild.getMembers().forEach((member) -> {
-                var userId = this.bridge.getUserIdForDiscordUser(member.getUser());
-                if(this.bridge.getDatabase().userExists(userId)) { // Check if they're in the database, because if they're not they haven't been registered on Matrix
-                    try {
-                        this.setPresenceForUserFromDiscord(member, this.bridge.getClientManager().getClientForUser(userId));
-                    } catch (MatrixNetworkException e) {
-                        this.bridge.getLogger().warn("Failed to set presence for user: " + member.getUser().getName());
-                        this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
-            }));
 
+        // Queue the presences of everyone that is already online, after that only changes are sent
+        this.bridge.getJDA().getGuilds().forEach(guild -> guild.getMembers().forEach(member -> {
+            if(member.getOnlineStatus() != OnlineStatus.OFFLINE) {
+                this.handleDiscordPresenceChange(member);
+            }
+        }));
+
+        var config = this.bridge.getDiscordConfig().getPresence();
+        var keepaliveInterval = config.getKeepaliveInterval() * 1000L;
+        var nextKeepalive = System.currentTimeMillis() + keepaliveInterval;
+
+        while(this.running) {
             try {
-                Thread.sleep(50000); // Run again in 50 seconds
+                Thread.sleep(TICK_INTERVAL);
             } catch (InterruptedException e) {
-                // Interrupted, that means the thread has stopped.
+                break; // Interrupted, that means the thread has stopped.
+            }
+
+            var now = System.currentTimeMillis();
+            if(now >= nextKeepalive) {
+                this.lastSent.forEach((discordId, presence) -> {
+                    if(presence.presence != Presence.OFFLINE) {
+                        var keepalive = new PendingPresence(discordId, presence, now, true, this.sequence.incrementAndGet());
+                        if(this.pending.putIfAbsent(discordId, keepalive) == null) {
+                            this.keepalives.add(keepalive);
+                        }
+                    }
+                });
+                nextKeepalive = now + keepaliveInterval;
             }
+
+            this.flush(now, Math.max(1, config.getMaxUpdatesPerSecond()) * TICK_INTERVAL / 1000);
         }
 
         this.bridge.getLogger().info("Discord Presence Updating stopped.");
     }
 
-    public void setPresenceForUserFromDiscord(Member member, MatrixUserClient client) throws MatrixNetworkException {
+    /**
+     * Sends the pending presences whose debounce window has ended.
+     * @param now The current time.
+     * @param limit Maximum amount of presences to send, the rest are sent in the next batch.
+     */
+    private void flush(long now, long limit) {
+        while(limit > 0) {
+            var update = this.changes.peek();
+            if(update == null || update.dueAt > now) break;
+
+            this.changes.poll();
+            if(this.send(update)) limit--;
+        }
+
+        while(limit > 0) {
+            var update = this.keepalives.poll();
+            if(update == null) break;
+
+            if(this.send(update)) limit--;
+        }
+    }
+
+    /**
+     * @return If the presence was sent to Matrix.
+     */
+    private boolean send(PendingPresence update) {
+        if(!this.pending.remove(update.discordId, update)) return false; // It was replaced, the newer update is queued too
+
+        if(!update.keepalive && update.presence.equals(this.lastSent.get(update.discordId))) {
+            this.suppressed.incrementAndGet(); // Flapped back to what Matrix already has
+            return false;
+        }
+
+        this.sendPresence(update.discordId, update.presence);
+        return true;
+    }
+
+    /**
+     * Queues a Discord member's presence to be sent to Matrix. If the user already has a
+     * presence waiting to be sent, it is replaced by this one.
+     * @param member The Discord member whose presence changed.
+     */
+    public void handleDiscordPresenceChange(Member member) {
+        var user = member.getUser();
+        if(!this.bridge.getPuppetProvisioner().isProvisioned(user.getIdLong())) return; // They aren't on Matrix (yet), checked in memory as presence events are frequent
+
+        var presence = getPresenceForMember(member);
+        var now = System.currentTimeMillis();
+        var update = this.pending.compute(user.getIdLong(), (id, existing) -> {
+            if(existing == null || existing.keepalive) {
+                return new PendingPresence(id, presence, now + this.bridge.getDiscordConfig().getPresence().getDebounceWindow(), false, this.sequence.incrementAndGet());
+            }
+
+            this.suppressed.incrementAndGet(); // Collapse it into the pending one, keeping its place in the queue
+            return new PendingPresence(id, presence, existing.dueAt, false, existing.sequence);
+        });
+        this.changes.add(update);
+    }
+
+    private void sendPresence(long discordId, SentPresence presence) {
+        try {
+            this.bridge.getClientManager().getClientForUser(this.bridge.getUserIdForDiscordId(Long.toString(discordId)))
+                    .setPresence(presence.presence, presence.status);
+            this.lastSent.put(discordId, presence);
+            this.sent.incrementAndGet();
+        } catch (MatrixNetworkException e) {
+            this.bridge.getLogger().warn("Failed to set presence for Discord user: " + discordId);
+            this.bridge.getLogger().error("MatrixNetworkException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The amount of presence updates sent to Matrix.
+     */
+    public long getSentCount() {
+        return this.sent.get();
+    }
+
+    /**
+     * @return The amount of presence changes that weren't sent, because they were collapsed or didn't change anything.
+     */
+    public long getSuppressedCount() {
+        return this.suppressed.get();
+    }
+
+    /**
+     * @return The amount of presence updates waiting to be sent.
+     */
+    public int getPendingCount() {
+        return this.pending.size();
+    }
+
+    private static SentPresence getPresenceForMember(Member member) {
         var discordStatus = member.getOnlineStatus();
         var game = member.getGame();
         Presence matrixPresence;
@@ -110,6 +246,46 @@ public class PresenceHandler {
             }
         }
 
-        client.setPresence(matrixPresence, statusMsgBuilder.toString());
+        return new SentPresence(matrixPresence, statusMsgBuilder.toString());
+    }
+
+    private static class PendingPresence {
+        final long discordId;
+        final SentPresence presence;
+        final long dueAt;
+        final boolean keepalive;
+        final long sequence; // Order of updates that are due at the same time
+
+        PendingPresence(long discordId, SentPresence presence, long dueAt, boolean keepalive, long sequence) {
+            this.discordId = discordId;
+            this.presence = presence;
+            this.dueAt = dueAt;
+            this.keepalive = keepalive;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class SentPresence {
+        final Presence presence;
+        final String status;
+
+        SentPresence(Presence presence, String status) {
+            this.presence = presence;
+            this.status = status;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof SentPresence)) return false;
+
+            var other = (SentPresence) o;
+            return this.presence == other.presence && this.status.equals(other.status);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.presence, this.status);
+        }
     }
 }
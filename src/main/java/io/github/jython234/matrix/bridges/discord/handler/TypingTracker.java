@@ -0,0 +1,54 @@
+package io.github.jython234.matrix.bridges.discord.handler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which Matrix users are marked as typing in which rooms, so typing
+ * notifications are only sent to Matrix when they would change something.
+ *
+ * @author jython234
+ */
+class TypingTracker {
+    /**
+     * How long a user is marked as typing after a typing notification, in milliseconds.
+     */
+    static final int TYPING_TIMEOUT = 7000;
+
+    private static final int REFRESH_MARGIN = 1500; // Send again if the typing notification expires within this many milliseconds
+    private static final int PURGE_THRESHOLD = 1024;
+
+    private final Map<String, Long> typingUntil = new ConcurrentHashMap<>(); // "userId roomId" -> Time the typing notification expires
+
+    /**
+     * Marks a user as typing in a room.
+     * @param userId The Matrix user ID.
+     * @param roomId The Matrix room ID.
+     * @return If a typing notification needs to be sent, false if the user is already marked as typing.
+     */
+    boolean startTyping(String userId, String roomId) {
+        var now = System.currentTimeMillis();
+        var key = userId + " " + roomId;
+
+        var until = this.typingUntil.get(key);
+        if(until != null && until - now > REFRESH_MARGIN) return false;
+
+        if(this.typingUntil.size() > PURGE_THRESHOLD) {
+            this.typingUntil.values().removeIf(time -> time <= now); // Users who stopped typing without sending a message
+        }
+
+        this.typingUntil.put(key, now + TYPING_TIMEOUT);
+        return true;
+    }
+
+    /**
+     * Marks a user as no longer typing in a room.
+     * @param userId The Matrix user ID.
+     * @param roomId The Matrix room ID.
+     * @return If the user was marked as typing, so a notification needs to be sent to stop it.
+     */
+    boolean stopTyping(String userId, String roomId) {
+        var until = this.typingUntil.remove(userId + " " + roomId);
+        return until != null && until > System.currentTimeMillis();
+    }
+}
@@ -3,7 +3,6 @@ package io.github.jython234.matrix.bridges.discord.handler;
 import io.github.jython234.matrix.appservice.event.room.RoomMemberMatrixEvent;
 import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
 import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
-import io.github.jython234.matrix.bridges.discord.Util;
 import net.dv8tion.jda.core.events.user.UserTypingEvent;
 import net.dv8tion.jda.core.events.user.update.UserUpdateAvatarEvent;
 import net.dv8tion.jda.core.events.user.update.UserUpdateNameEvent;
@@ -17,55 +16,66 @@ import java.io.IOException;
  */
 public class UserEventsHandler {
     private MatrixDiscordBridge bridge;
+    private TypingTracker typingTracker;
 
     public UserEventsHandler(MatrixDiscordBridge bridge) {
         this.bridge = bridge;
+        this.typingTracker = new TypingTracker();
     }
 
     public void handleDiscordUserTyping(UserTypingEvent event) throws IOException, MatrixNetworkException {
-        var roomId = Util.getRoomIdForChannel(event.getTextChannel());
-        var room = this.bridge.getDatabase().getRoom(roomId);
+        var room = this.bridge.getRoomIndex().getRoomForChannel(event.getTextChannel());
+        if(room == null || room.getMatrixId().equals("")) return; // This channel isn't bridged
 
+        if(event.getMember() != null) this.bridge.getPuppetProvisioner().ensureProvisioned(event.getMember());
         var userId = this.bridge.getUserIdForDiscordUser(event.getUser());
 
-        this.bridge.getClientManager().getClientForUser(userId).setTyping(room.getMatrixId(), true, 7000);
+        if(this.typingTracker.startTyping(userId, room.getMatrixId())) { // Only if they aren't already marked as typing
+            this.bridge.getClientManager().getClientForUser(userId).setTyping(room.getMatrixId(), true, TypingTracker.TYPING_TIMEOUT);
+        }
+    }
+
+    TypingTracker getTypingTracker() {
+        return this.typingTracker;
     }
 
     public void handleDiscordUserNameChange(UserUpdateNameEvent event) throws IOException, MatrixNetworkException {
-        var userId = this.bridge.getUserIdForDiscordUser(event.getUser());
+        var discordId = event.getUser().getId(); // Users are stored in the database by their Discord ID
 
-        if(this.bridge.getDatabase().userExists(userId)) { // If they're not in the database, they aren't on Matrix
-            this.bridge.getDbManagement().updateUsernameFromDiscordUser(this.bridge.getDatabase().getUser(userId), event.getUser()
-                    , this.bridge.getClientManager().getClientForUser(userId));
+        if(this.bridge.getDatabase().userExists(discordId)) { // If they're not in the database, they aren't on Matrix
+            this.bridge.getDbManagement().updateUsernameFromDiscordUser(this.bridge.getDbManagement().getUser(discordId), event.getUser()
+                    , this.bridge.getClientManager().getClientForUser(this.bridge.getUserIdForDiscordUser(event.getUser())));
         }
     }
 
-    public void handleDiscordAvatarChange(UserUpdateAvatarEvent event) throws IOException, MatrixNetworkException {
-        var userId = this.bridge.getUserIdForDiscordUser(event.getUser());
+    public void handleDiscordAvatarChange(UserUpdateAvatarEvent event) throws IOException {
+        var discordId = event.getUser().getId(); // Users are stored in the database by their Discord ID
 
-        if(this.bridge.getDatabase().userExists(userId)) { // If they're not in the database, they aren't on Matrix
-            this.bridge.getDbManagement().updateAvatarFromDiscordUser(this.bridge.getDatabase().getUser(userId), event.getUser()
-                    , this.bridge.getClientManager().getClientForUser(userId));
+        if(this.bridge.getDatabase().userExists(discordId)) { // If they're not in the database, they aren't on Matrix
+            this.bridge.getDbManagement().updateAvatarFromDiscordUser(this.bridge.getDbManagement().getUser(discordId), event.getUser());
         }
     }
 
     public void handleMatrixMembershipEvent(RoomMemberMatrixEvent event) throws IOException, MatrixNetworkException {
-        var room = this.bridge.getDatabase().getRoomByMatrixId(event.roomId);
-        var channel = this.bridge.getJDA().getTextChannelById((String) room.getAdditionalData().get("channel"));
+        var channelId = this.bridge.getRoomIndex().getChannelIdForMatrixId(event.roomId);
+        if(channelId == -1) return; // This room isn't bridged
+
+        var channel = this.bridge.getJDA().getTextChannelById(channelId);
+        if(channel == null) return; // The channel is gone
 
         switch (event.content.membership) {
             case JOIN:
-                if(!this.bridge.getWebhookManager().userHasWebhook(room, event.stateKey)) { // Check if the user had a webhook, meaning that they were already in the room before
+                if(!this.bridge.getWebhookManager().userHasWebhook(channel, event.stateKey)) { // Check if the user had a webhook, meaning that they were already in the room before
                     // They weren't in the room before, so display a join message
                     channel.sendMessage("__**Matrix:**__ ***" + event.content.displayname + "*** (*" + event.stateKey + "*) has joined the room.").submit();
                 }
 
                 // Update the webhook for this user
-                this.bridge.getWebhookManager().updateWebhookForUser(channel, room, event.stateKey, event.content.displayname, event.content.avatarURL);
+                this.bridge.getWebhookManager().updateWebhookForUser(channel, event.stateKey, event.content.displayname, event.content.avatarURL);
                 break;
             case LEAVE:
                 // Remove the webhook
-                this.bridge.getWebhookManager().removeWebhookForUser(channel, room, event.stateKey);
+                this.bridge.getWebhookManager().removeWebhookForUser(channel, event.stateKey);
 
                 // Send a leave message
                 channel.sendMessage("__**Matrix:**__ *" + event.stateKey + "* has left the room.").submit();
@@ -0,0 +1,93 @@
+package io.github.jython234.matrix.bridges.discord.handler;
+
+import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
+import net.dv8tion.jda.core.entities.Webhook;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one long-lived {@link WebhookSender} per webhook, so the rate limit of a webhook
+ * is remembered between messages and the sender doesn't need to be built every time.
+ *
+ * Senders that haven't been used for a while are dropped by a background task,
+ * and all senders are dropped when the bridge stops.
+ *
+ * @author jython234
+ */
+class WebhookClientPool {
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+    private static final long EVICTION_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private MatrixDiscordBridge bridge;
+
+    private final Map<String, PooledClient> clients = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    WebhookClientPool(MatrixDiscordBridge bridge) {
+        this.bridge = bridge;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable);
+            thread.setName("WebhookClientEvictorThread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.evictor.scheduleWithFixedDelay(this::evictIdleClients, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the sender for a webhook, building it if there isn't one already.
+     * @param webhook The webhook to get the sender for.
+     * @return The pooled sender.
+     * @throws IOException If the webhook URL couldn't be built.
+     */
+    WebhookSender getClient(Webhook webhook) throws IOException {
+        var pooled = this.clients.get(webhook.getId());
+        if(pooled == null) {
+            var created = new PooledClient(new WebhookSender(webhook));
+            pooled = this.clients.putIfAbsent(webhook.getId(), created);
+            if(pooled == null) pooled = created;
+        }
+        pooled.lastUsed = System.currentTimeMillis();
+
+        return pooled.client;
+    }
+
+    /**
+     * Removes the sender for a webhook, used when the webhook is deleted.
+     * @param webhookId The ID of the webhook.
+     */
+    void removeClient(String webhookId) {
+        this.clients.remove(webhookId);
+    }
+
+    private void evictIdleClients() {
+        var cutoff = System.currentTimeMillis() - IDLE_TIMEOUT;
+
+        this.clients.values().removeIf(pooled -> pooled.lastUsed < cutoff);
+    }
+
+    /**
+     * Drops all the senders, called when the bridge is stopping.
+     */
+    void shutdown() {
+        this.evictor.shutdownNow();
+        this.clients.clear();
+
+        this.bridge.getLogger().info("Closed all webhook clients.");
+    }
+
+    private static class PooledClient {
+        final WebhookSender client;
+        volatile long lastUsed;
+
+        PooledClient(WebhookSender client) {
+            this.client = client;
+        }
+    }
+}
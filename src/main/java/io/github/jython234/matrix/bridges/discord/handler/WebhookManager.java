@@ -3,94 +3,270 @@ package io.github.jython234.matrix.bridges.discord.handler;
 import io.github.jython234.matrix.bridge.db.Room;
 import io.github.jython234.matrix.bridge.network.MatrixNetworkException;
 import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
-import net.dv8tion.jda.core.entities.Icon;
+import io.github.jython234.matrix.bridges.discord.MetricsRegistry;
 import net.dv8tion.jda.core.entities.TextChannel;
 import net.dv8tion.jda.core.entities.Webhook;
+import net.dv8tion.jda.core.exceptions.ErrorResponseException;
+import net.dv8tion.jda.core.exceptions.HttpException;
+import net.dv8tion.jda.core.requests.ErrorResponse;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
 
+/**
+ * Manages the Discord webhooks used to send messages from Matrix users.
+ *
+ * The webhooks of each channel are cached after they are first listed, and the cache is
+ * kept up to date when webhooks are created or removed, so relaying a message doesn't need
+ * to list the webhooks of the channel again. If Discord reports a webhook as unknown (for
+ * example because it was deleted by someone in the guild) it's dropped with
+ * {@link #invalidateWebhook(TextChannel, String)} and re-created on the next message.
+ *
+ * Which webhook belongs to which Matrix user is stored in a {@link WebhookRegistry}, by channel.
+ *
+ * @author jython234
+ */
 public class WebhookManager {
+    private static final String LEGACY_KEY_PREFIX = "webhook-"; // Webhooks used to be stored in the room's additional data under this prefix
+    private static final Pattern HTTP_FAILURE = Pattern.compile("^Request returned failure (\\d{3})\\b"); // How WebhookSender reports the HTTP status of a failed request
+
     private MatrixDiscordBridge bridge;
 
-    public WebhookManager(MatrixDiscordBridge bridge) {
+    private final Map<Long, Map<String, Webhook>> webhookCache = new ConcurrentHashMap<>(); // Channel ID -> (Webhook ID -> Webhook)
+    private final Map<String, String> webhookNames = new ConcurrentHashMap<>(); // Webhook ID -> Name it was last given, cached Webhooks don't see renames
+    private final Map<String, String> webhookAvatars = new ConcurrentHashMap<>(); // Webhook ID -> mxc:// URL of the avatar it was last given
+    private final WebhookClientPool clientPool;
+    private final WebhookRegistry registry;
+
+    private final MetricsRegistry.Counter cacheHits;
+    private final MetricsRegistry.Counter cacheMisses;
+
+    public WebhookManager(MatrixDiscordBridge bridge, File registryFile) {
         this.bridge = bridge;
+        this.clientPool = new WebhookClientPool(bridge);
+        this.registry = new WebhookRegistry(bridge, registryFile);
+
+        this.cacheHits = bridge.getMetrics().counter("webhook_cache_requests_total", "Lookups of a channel's webhooks, by if they were cached.", "result", "hit");
+        this.cacheMisses = bridge.getMetrics().counter("webhook_cache_requests_total", "Lookups of a channel's webhooks, by if they were cached.", "result", "miss");
+    }
+
+    /**
+     * Gets the pooled sender used to send messages through a webhook.
+     * @param webhook The webhook.
+     * @return The sender for the webhook.
+     * @throws IOException If the webhook URL couldn't be built.
+     */
+    WebhookSender getClient(Webhook webhook) throws IOException {
+        return this.clientPool.getClient(webhook);
+    }
+
+    /**
+     * Drops all webhook senders, called when the bridge is stopping.
+     */
+    public void shutdown() {
+        this.clientPool.shutdown();
+        this.registry.close();
+    }
+
+    /**
+     * Moves the webhooks stored in the additional data of a room by older versions into the registry.
+     * @param channelId The ID of the room's channel.
+     * @param room The Room entry.
+     */
+    public void migrateRoomWebhooks(long channelId, Room room) {
+        for(var key : new ArrayList<>(room.getAdditionalData().keySet())) {
+            if(key.startsWith(LEGACY_KEY_PREFIX)) {
+                var webhookId = (String) room.getAdditionalData().get(key);
+                if(this.registry.get(channelId, key.substring(LEGACY_KEY_PREFIX.length())) == null) {
+                    this.registry.put(channelId, key.substring(LEGACY_KEY_PREFIX.length()), webhookId);
+                }
+                this.bridge.getDbManagement().deleteRoomField(room, key);
+            }
+        }
+    }
+
+    /**
+     * Gets the cached webhooks of a channel, listing them from Discord
+     * if the channel hasn't been cached yet.
+     * @param channel The channel to get the webhooks of.
+     * @return Map of webhook IDs to webhooks.
+     */
+    private Map<String, Webhook> getChannelWebhooks(TextChannel channel) {
+        var webhooks = this.webhookCache.get(channel.getIdLong());
+        if(webhooks != null) {
+            this.cacheHits.increment();
+        } else {
+            this.cacheMisses.increment();
+            Map<String, Webhook> loaded = new ConcurrentHashMap<>();
+            channel.getWebhooks().complete().forEach(webhook -> loaded.put(webhook.getId(), webhook));
+
+            webhooks = this.webhookCache.putIfAbsent(channel.getIdLong(), loaded);
+            if(webhooks == null) webhooks = loaded;
+        }
+        return webhooks;
+    }
+
+    /**
+     * Removes a webhook from the cache, used when Discord reports that it doesn't exist anymore.
+     * @param channel The channel the webhook belonged to.
+     * @param id The ID of the webhook.
+     */
+    void invalidateWebhook(TextChannel channel, String id) {
+        var webhooks = this.webhookCache.get(channel.getIdLong());
+        if(webhooks != null) webhooks.remove(id);
+
+        this.webhookNames.remove(id);
+        this.webhookAvatars.remove(id);
+        this.clientPool.removeClient(id);
+    }
+
+    /**
+     * Forgets all webhooks of a channel, used when the channel is deleted.
+     * @param channelId The ID of the channel.
+     */
+    public void invalidateChannel(long channelId) {
+        this.registry.removeChannel(channelId);
+
+        var webhooks = this.webhookCache.remove(channelId);
+        if(webhooks != null) {
+            webhooks.keySet().forEach(this.clientPool::removeClient);
+            webhooks.keySet().forEach(this.webhookNames::remove);
+            webhooks.keySet().forEach(this.webhookAvatars::remove);
+        }
+    }
+
+    /**
+     * Checks if an error returned by Discord means that the webhook doesn't exist (404).
+     * @param throwable The error returned.
+     * @return If the error is caused by an unknown webhook.
+     */
+    static boolean isUnknownWebhookError(Throwable throwable) {
+        for(var cause = throwable; cause != null; cause = cause.getCause()) {
+            if(cause instanceof ErrorResponseException && ((ErrorResponseException) cause).getErrorResponse() == ErrorResponse.UNKNOWN_WEBHOOK) {
+                return true;
+            }
+            if(cause instanceof HttpException && cause.getMessage() != null) {
+                var matcher = HTTP_FAILURE.matcher(cause.getMessage());
+                if(matcher.find() && matcher.group(1).equals("404")) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
-    Webhook createWebhookForUser(TextChannel channel, Room room, String userId) throws IOException, MatrixNetworkException {
+    /**
+     * Handles a webhook being reported as unknown by Discord, removing it from the cache and
+     * the registry so a new one is created for the user on the next message.
+     * @param channel The channel the webhook belonged to.
+     * @param userId The Matrix user the webhook belonged to.
+     * @param id The ID of the webhook.
+     */
+    void handleUnknownWebhook(TextChannel channel, String userId, String id) {
+        this.bridge.getLogger().warn("Webhook " + id + " for " + userId + " no longer exists in #" + channel.getName() + ", it will be re-created.");
+
+        this.invalidateWebhook(channel, id);
+        this.registry.remove(channel.getIdLong(), userId, id);
+    }
+
+    Webhook createWebhookForUser(TextChannel channel, String userId) throws IOException, MatrixNetworkException {
         var senderDomain = userId.split(":")[1]; // Get the last part of the user ID, which is the domain
 
         // Create the new webhook
         var webhookBuilder = channel.createWebhook(userId);
         var webhook = webhookBuilder.complete();
 
-        var avatar = new File(this.bridge.getTmpDir() + File.separator + System.currentTimeMillis() + ".png"); // Temporary file for downloading avatar
         var name = this.bridge.getClientManager().getBridgeClient().getDisplayName(userId); // Get the displayname of the user
         var avatarUrl = this.bridge.getClientManager().getBridgeClient().getAvatarURL(userId); // Get the avatar url of the user
 
         if(name.successful) {
             webhook.getManager().setName(name.result + " (" + senderDomain + ")").queue();
+            this.webhookNames.put(webhook.getId(), name.result + " (" + senderDomain + ")");
         } else this.bridge.getLogger().warn("Failed to lookup displayname for " + userId + " while creating webhook!");
 
         if(avatarUrl.successful && avatarUrl.result != null) { // Result will be null if the user doesn't have an avatar set
-            this.bridge.getClientManager().downloadMatrixFile(avatarUrl.result, avatar.getPath());
-            webhook.getManager().setAvatar(Icon.from(avatar)).queue();
-
-            avatar.delete();
+            webhook.getManager().setAvatar(this.bridge.getMediaCache().getIcon(avatarUrl.result)).queue();
+            this.webhookAvatars.put(webhook.getId(), avatarUrl.result);
         } else this.bridge.getLogger().warn("Failed to lookup avatar URL for " + userId + " while creating webhook!");
 
         // Store the ID for future messages
-        room.updateDataField("webhook-" + userId, webhook.getId());
+        this.registry.put(channel.getIdLong(), userId, webhook.getId());
+        this.getChannelWebhooks(channel).put(webhook.getId(), webhook);
 
         return webhook;
     }
 
     Webhook getWebhookById(TextChannel channel, String id) {
-        for(var webhook : channel.getWebhooks().complete()) {
-            if(webhook.getId().equals(id)) {
-                return webhook;
-            }
-        }
+        return this.getChannelWebhooks(channel).get(id);
+    }
 
-        return null;
+    /**
+     * @return The ID of the user's webhook in the channel, or null if they don't have one.
+     */
+    String getWebhookIdForUser(TextChannel channel, String userId) {
+        return this.registry.get(channel.getIdLong(), userId);
     }
 
-    boolean userHasWebhook(Room room, String userId) {
-        return room.getAdditionalData().containsKey("webhook-" + userId);
+    boolean userHasWebhook(TextChannel channel, String userId) {
+        return this.registry.get(channel.getIdLong(), userId) != null;
     }
 
-    void removeWebhookForUser(TextChannel channel, Room room, String userId) {
-        var hookId = room.getAdditionalData().get("webhook-" + userId);
+    void removeWebhookForUser(TextChannel channel, String userId) {
+        var hookId = this.registry.remove(channel.getIdLong(), userId, null); // Remove the webhook ID from the registry
         if(hookId != null) {
-            channel.getWebhooks().complete().forEach(webhook -> {
-                if(webhook.getId().equals(hookId)) {
-                    webhook.delete().submit();
-                }
-            });
+            var webhook = this.getChannelWebhooks(channel).remove(hookId);
+            if(webhook != null) {
+                this.clientPool.removeClient(webhook.getId());
+                this.webhookNames.remove(webhook.getId());
+                this.webhookAvatars.remove(webhook.getId());
+                webhook.delete().submit();
+            }
         }
-
-        room.deleteDataField("webhook-" + userId); // Remove the webhook Id from the database
     }
 
-    void updateWebhookForUser(TextChannel channel, Room room, String userId, String displayname, String avatarUrl) throws MatrixNetworkException, IOException {
+    /**
+     * Updates the name and avatar of a user's webhook after their Matrix profile changed, or
+     * creates the webhook if they don't have one yet. Only changes are sent to Discord, in one request.
+     */
+    void updateWebhookForUser(TextChannel channel, String userId, String displayname, String avatarUrl) throws MatrixNetworkException, IOException {
         var senderDomain = userId.split(":")[1]; // Get the last part of the user ID, which is the domain
-        var hookId = room.getAdditionalData().get("webhook-" + userId);
+        var hookId = this.registry.get(channel.getIdLong(), userId);
+        if(hookId == null) {
+            createWebhookForUser(channel, userId);
+            return;
+        }
 
-        if(hookId != null) {
-            for (var webhook : channel.getWebhooks().complete()) {
-                var avatar = new File(this.bridge.getTmpDir() + File.separator + System.currentTimeMillis() + ".png"); // Temporary file for downloading avatar
+        var webhook = this.getWebhookById(channel, hookId);
+        if(webhook == null) { // It was deleted on Discord
+            this.handleUnknownWebhook(channel, userId, hookId);
+            createWebhookForUser(channel, userId);
+            return;
+        }
 
-                webhook.getManager().setName(displayname + " (" + senderDomain + ")").queue();
+        var manager = webhook.getManager();
+        var changed = false;
 
-                if(avatarUrl != null && !avatarUrl.equals("")) { // Will be null if the user doesn't have an avatar set
-                    this.bridge.getClientManager().downloadMatrixFile(avatarUrl, avatar.getPath());
-                    webhook.getManager().setAvatar(Icon.from(avatar)).queue();
+        var name = displayname + " (" + senderDomain + ")";
+        if(!name.equals(this.webhookNames.get(hookId))) {
+            manager.setName(name);
+            this.webhookNames.put(hookId, name);
+            changed = true;
+        }
 
-                    avatar.delete();
-                }
+        if(avatarUrl != null && !avatarUrl.equals("") && !avatarUrl.equals(this.webhookAvatars.get(hookId))) { // Will be null if the user doesn't have an avatar set
+            manager.setAvatar(this.bridge.getMediaCache().getIcon(avatarUrl)); // Downloaded only once for each avatar, the media cache keeps it
+            this.webhookAvatars.put(hookId, avatarUrl);
+            changed = true;
+        }
 
-                webhook.getManager().queue();
-            }
-        } else createWebhookForUser(channel, room, userId);
+        if(changed) {
+            manager.queue(null, throwable -> {
+                if(isUnknownWebhookError(throwable)) this.handleUnknownWebhook(channel, userId, hookId);
+            });
+        }
     }
 }
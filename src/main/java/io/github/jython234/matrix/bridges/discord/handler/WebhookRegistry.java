@@ -0,0 +1,175 @@
+package io.github.jython234.matrix.bridges.discord.handler;
+
+import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores which webhook is used for each Matrix user in each Discord channel.
+ *
+ * Webhooks used to be stored in the additional data of the channel's room, which made room entries grow with
+ * every Matrix user that joined. The registry keeps them in memory instead, and stores every change as a small
+ * record appended to a log file. The log is compacted when the bridge starts, so it only contains the webhooks in use.
+ *
+ * @author jython234
+ */
+class WebhookRegistry {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_CHANNEL = 3;
+
+    private MatrixDiscordBridge bridge;
+    private final File file;
+
+    private final Map<Long, Map<String, Long>> webhooks = new ConcurrentHashMap<>(); // Channel ID -> (Matrix user ID -> Webhook ID)
+    private DataOutputStream out;
+
+    WebhookRegistry(MatrixDiscordBridge bridge, File file) {
+        this.bridge = bridge;
+        this.file = file;
+
+        try {
+            this.load();
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to load the webhook registry, webhooks will be re-created.");
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replays the log, then writes it again with only the webhooks in use.
+     */
+    private void load() throws IOException {
+        if(this.file.exists()) {
+            try(var in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+                while(true) {
+                    var op = in.readByte();
+                    var channelId = in.readLong();
+                    if(op == PUT) {
+                        var userId = in.readUTF();
+                        this.webhooks.computeIfAbsent(channelId, id -> new ConcurrentHashMap<>()).put(userId, in.readLong());
+                    } else if(op == REMOVE) {
+                        var userId = in.readUTF();
+                        var channelWebhooks = this.webhooks.get(channelId);
+                        if(channelWebhooks != null) channelWebhooks.remove(userId);
+                    } else if(op == REMOVE_CHANNEL) {
+                        this.webhooks.remove(channelId);
+                    } else {
+                        throw new IOException("Unknown record type " + op + " in the webhook registry");
+                    }
+                }
+            } catch (EOFException e) {
+                // End of the log, a record cut off by the bridge stopping is ignored
+            }
+        }
+
+        var tmpFile = new File(this.file.getPath() + ".tmp");
+        try(var compacted = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            for(var channel : this.webhooks.entrySet()) {
+                for(var webhook : channel.getValue().entrySet()) {
+                    writePut(compacted, channel.getKey(), webhook.getKey(), webhook.getValue());
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file, true)));
+    }
+
+    private static void writePut(DataOutputStream out, long channelId, String userId, long webhookId) throws IOException {
+        out.writeByte(PUT);
+        out.writeLong(channelId);
+        out.writeUTF(userId);
+        out.writeLong(webhookId);
+    }
+
+    /**
+     * @param channelId The ID of the Discord channel.
+     * @param userId The Matrix user ID.
+     * @return The ID of the user's webhook in the channel, or null if they don't have one.
+     */
+    String get(long channelId, String userId) {
+        var channelWebhooks = this.webhooks.get(channelId);
+        if(channelWebhooks == null) return null;
+
+        var webhookId = channelWebhooks.get(userId);
+        return webhookId != null ? Long.toString(webhookId) : null;
+    }
+
+    synchronized void put(long channelId, String userId, String webhookId) {
+        var id = Long.parseLong(webhookId);
+        this.webhooks.computeIfAbsent(channelId, channel -> new ConcurrentHashMap<>()).put(userId, id);
+
+        this.write(() -> writePut(this.out, channelId, userId, id));
+    }
+
+    /**
+     * Removes the webhook of a user in a channel.
+     * @param channelId The ID of the Discord channel.
+     * @param userId The Matrix user ID.
+     * @param webhookId Only remove the webhook if it has this ID, or null to remove any webhook.
+     * @return The ID of the removed webhook, or null if nothing was removed.
+     */
+    synchronized String remove(long channelId, String userId, String webhookId) {
+        var removed = this.get(channelId, userId);
+        if(removed == null || (webhookId != null && !webhookId.equals(removed))) return null;
+
+        this.webhooks.get(channelId).remove(userId);
+        this.write(() -> {
+            this.out.writeByte(REMOVE);
+            this.out.writeLong(channelId);
+            this.out.writeUTF(userId);
+        });
+        return removed;
+    }
+
+    synchronized void removeChannel(long channelId) {
+        if(this.webhooks.remove(channelId) == null) return;
+
+        this.write(() -> {
+            this.out.writeByte(REMOVE_CHANNEL);
+            this.out.writeLong(channelId);
+        });
+    }
+
+    private void write(Record record) {
+        if(this.out == null) return; // The log couldn't be opened, the registry only lives in memory then
+
+        try {
+            record.write();
+            this.out.flush();
+        } catch (IOException e) {
+            this.bridge.getLogger().warn("Failed to write to the webhook registry");
+            this.bridge.getLogger().error("IOException: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void close() {
+        if(this.out == null) return;
+
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Record {
+        void write() throws IOException;
+    }
+}
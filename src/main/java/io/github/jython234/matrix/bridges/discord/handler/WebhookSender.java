@@ -0,0 +1,153 @@
+package io.github.jython234.matrix.bridges.discord.handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
+import net.dv8tion.jda.core.entities.Webhook;
+import net.dv8tion.jda.core.exceptions.HttpException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes a Discord webhook with <code>wait=true</code>, so Discord returns the message it created
+ * and its ID can be remembered for deleting it later. JDA's webhook client doesn't wait for the message.
+ *
+ * Sending blocks until Discord has created the message. The rate limit of the webhook is followed: if no
+ * requests are left the next one waits for the reset, and requests that are rate limited anyway are retried.
+ *
+ * @author jython234
+ */
+class WebhookSender {
+    private static final String API_URL = "https://discordapp.com/api/v6/webhooks/";
+    private static final String USER_AGENT = "DiscordBot (" + MatrixDiscordBridge.SOFTWARE + ", " + MatrixDiscordBridge.SOFTWARE_VERSION + ")";
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final URL url;
+    private long rateLimitReset = 0; // When requests can be sent again if none are left, 0 if there are some left
+
+    WebhookSender(Webhook webhook) throws IOException {
+        this.url = new URL(API_URL + webhook.getId() + "/" + webhook.getToken() + "?wait=true");
+    }
+
+    /**
+     * Sends a text message.
+     * @param content The text of the message.
+     * @return The ID of the created Discord message.
+     * @throws IOException If there was an error while connecting.
+     * @throws HttpException If Discord refused the message.
+     */
+    long send(String content) throws IOException {
+        var body = JSON.writeValueAsBytes(JSON.createObjectNode().put("content", content));
+        return this.execute("application/json", body);
+    }
+
+    /**
+     * Sends a file as an attachment, without any text.
+     * @param filename The name of the file shown on Discord.
+     * @param data The contents of the file.
+     * @return The ID of the created Discord message.
+     * @throws IOException If there was an error while connecting.
+     * @throws HttpException If Discord refused the message.
+     */
+    long sendFile(String filename, byte[] data) throws IOException {
+        var boundary = "----MatrixDiscordBridge" + System.nanoTime();
+        var body = new ByteArrayOutputStream(data.length + 256);
+
+        body.write(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename.replace("\"", "") + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(data);
+        body.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        return this.execute("multipart/form-data; boundary=" + boundary, body.toByteArray());
+    }
+
+    private synchronized long execute(String contentType, byte[] body) throws IOException {
+        for(int attempt = 1; ; attempt++) {
+            this.waitForRateLimit();
+
+            var connection = (HttpURLConnection) this.url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            connection.setRequestProperty("Content-Type", contentType);
+            connection.setFixedLengthStreamingMode(body.length);
+
+            try(var out = connection.getOutputStream()) {
+                out.write(body);
+            }
+
+            var status = connection.getResponseCode();
+            this.updateRateLimit(connection);
+
+            if(status == 200) {
+                try(var in = connection.getInputStream()) {
+                    var id = JSON.readTree(in).path("id");
+                    if(!id.isTextual()) {
+                        throw new IOException("Discord did not return the ID of the created message!");
+                    }
+                    return Long.parseLong(id.textValue());
+                }
+            }
+
+            var error = readError(connection);
+            if(status == 429 && attempt < MAX_ATTEMPTS) {
+                long retryAfter = 1000;
+                try {
+                    retryAfter = JSON.readTree(error.getBytes(StandardCharsets.UTF_8)).path("retry_after").asLong(retryAfter); // Milliseconds in API v6
+                } catch (IOException e) {
+                    // Not JSON, just wait a second then
+                }
+                sleep(retryAfter);
+                continue;
+            }
+
+            // Same format as JDA's webhook client, so WebhookManager.isUnknownWebhookError() recognises it
+            throw new HttpException("Request returned failure " + status + ": " + error);
+        }
+    }
+
+    private void waitForRateLimit() throws IOException {
+        var wait = this.rateLimitReset - System.currentTimeMillis();
+        if(wait > 0) sleep(wait);
+        this.rateLimitReset = 0;
+    }
+
+    private void updateRateLimit(HttpURLConnection connection) {
+        var remaining = connection.getHeaderField("X-RateLimit-Remaining");
+        var reset = connection.getHeaderField("X-RateLimit-Reset");
+        if(remaining == null || reset == null) return;
+
+        try {
+            if(Integer.parseInt(remaining) <= 0) {
+                this.rateLimitReset = (long) (Double.parseDouble(reset) * 1000); // Epoch seconds
+            }
+        } catch (NumberFormatException e) {
+            // Ignore broken headers, a 429 will tell us to wait anyway
+        }
+    }
+
+    private static String readError(HttpURLConnection connection) throws IOException {
+        try(InputStream in = connection.getErrorStream()) {
+            if(in == null) return connection.getResponseMessage();
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the webhook rate limit");
+        }
+    }
+}
@@ -19,5 +19,10 @@ module matrixjava.bridges.discord {
 
     requires commons.io;
 
-    opens io.github.jython234.matrix.bridges.discord to matrixjava.bridge;
+    requires spring.core;
+    requires spring.web;
+    requires spring.webmvc;
+    requires com.fasterxml.jackson.databind;
+
+    opens io.github.jython234.matrix.bridges.discord to matrixjava.bridge, spring.core, spring.beans, spring.web, spring.webmvc;
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+package io.github.jython234.matrix.bridges.discord;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link ImageScaler} with the scaling it replaced, which went through temporary files
+ * and looked up a new image writer for every emote.
+ *
+ * Run with the main method, or with the JMH runner on the test classpath.
+ *
+ * @author jython234
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageScalerBenchmark {
+    private static final int EMOTE_SIZE = 32;
+
+    /**
+     * The kind of emote scaled: a PNG that is already small enough, a large PNG, or a large animated GIF.
+     */
+    @Param({"small_png", "large_png", "animated_gif"})
+    public String kind;
+
+    private byte[] data;
+    private File tmpFile;
+    private File scaledFile;
+
+    @Setup
+    public void setup() throws IOException {
+        switch (this.kind) {
+            case "small_png":
+                this.data = writePng(createFrame(EMOTE_SIZE, 0));
+                break;
+            case "large_png":
+                this.data = writePng(createFrame(128, 0));
+                break;
+            default:
+                this.data = writeAnimatedGif(128, 8);
+                break;
+        }
+
+        this.tmpFile = File.createTempFile("emote", ".img");
+        this.scaledFile = File.createTempFile("emote", "-scaled.png");
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.tmpFile.delete();
+        this.scaledFile.delete();
+    }
+
+    @Benchmark
+    public ImageScaler.Scaled inMemory() throws IOException {
+        return ImageScaler.scale(this.data, EMOTE_SIZE);
+    }
+
+    @Benchmark
+    public byte[] tempFiles() throws IOException {
+        Files.write(this.tmpFile.toPath(), this.data); // The download used to be saved to a file first
+        scaleImageAndSave(this.tmpFile, this.scaledFile);
+        return Files.readAllBytes(this.scaledFile.toPath());
+    }
+
+    /**
+     * The scaling used before {@link ImageScaler}. Only the first frame of animated GIFs is kept.
+     */
+    private static void scaleImageAndSave(File source, File dest) throws IOException {
+        var img = ImageIO.read(source);
+        var imgScaled = new BufferedImage(EMOTE_SIZE, EMOTE_SIZE, BufferedImage.TYPE_INT_ARGB);
+
+        Graphics2D graphics = imgScaled.createGraphics();
+        graphics.setComposite(AlphaComposite.Clear);
+        graphics.fillRect(0, 0, EMOTE_SIZE, EMOTE_SIZE);
+
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(img, 0, 0, EMOTE_SIZE, EMOTE_SIZE, null);
+        graphics.dispose();
+
+        ImageIO.write(imgScaled, "PNG", dest);
+    }
+
+    private static BufferedImage createFrame(int size, int frame) {
+        var image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        var graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, size, size, Color.BLUE));
+        graphics.fillOval(0, 0, size, size);
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(frame * size / 8, size / 3, size / 4, size / 3); // Moves with each frame
+        graphics.dispose();
+        return image;
+    }
+
+    private static byte[] writePng(BufferedImage image) throws IOException {
+        var out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] writeAnimatedGif(int size, int frames) throws IOException {
+        var writer = ImageIO.getImageWritersByFormatName("gif").next();
+        var out = new ByteArrayOutputStream();
+        try(var imageOut = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            writer.prepareWriteSequence(null);
+            for(int i = 0; i < frames; i++) {
+                writer.writeToSequence(new IIOImage(createFrame(size, i), null, null), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ImageScalerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
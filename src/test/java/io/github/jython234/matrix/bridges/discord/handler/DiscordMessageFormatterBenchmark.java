@@ -0,0 +1,179 @@
+package io.github.jython234.matrix.bridges.discord.handler;
+
+import io.github.jython234.matrix.appservice.event.room.message.MessageContent;
+import io.github.jython234.matrix.bridges.discord.MatrixDiscordBridge;
+import net.dv8tion.jda.core.entities.Emote;
+import net.dv8tion.jda.core.entities.Member;
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.Role;
+import net.dv8tion.jda.core.entities.TextChannel;
+import net.dv8tion.jda.core.entities.User;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Compares {@link DiscordMessageFormatter} with the regex based formatting it replaced.
+ *
+ * Run with the main method, or with the JMH runner on the test classpath.
+ *
+ * @author jython234
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiscordMessageFormatterBenchmark {
+    /**
+     * The kind of message formatted: plain text, markdown only, or markdown with mentions and emotes.
+     */
+    @Param({"plain", "markdown", "mentions"})
+    public String kind;
+
+    private MatrixDiscordBridge bridge;
+    private DiscordMessageFormatter formatter;
+    private Message message;
+
+    private Parser parser;
+    private HtmlRenderer renderer;
+
+    @Setup
+    public void setup() throws IOException {
+        this.bridge = mock(MatrixDiscordBridge.class, withSettings().stubOnly());
+        var emojiManager = mock(EmojiManager.class, withSettings().stubOnly());
+        when(this.bridge.getEmojiManager()).thenReturn(emojiManager);
+
+        var members = new ArrayList<Member>();
+        var emotes = new ArrayList<Emote>();
+        var raw = new StringBuilder();
+        switch (this.kind) {
+            case "plain":
+                raw.append("Has anyone tried the new build yet? It starts a lot faster for me, about two seconds instead of ten.");
+                break;
+            case "markdown":
+                raw.append("Has **anyone** tried the _new build_ yet? It starts a ~~little~~ lot faster for me.");
+                break;
+            default:
+                for(int i = 0; i < 3; i++) {
+                    var member = this.mockMember(100000000000000000L + i, "user" + i, "Nickname " + i);
+                    members.add(member);
+                    raw.append(i == 0 ? "<@!" : "<@").append(member.getUser().getId()).append("> ");
+                }
+                raw.append("has **anyone** tried the new build yet? ");
+                for(int i = 0; i < 2; i++) {
+                    var emote = this.mockEmote(200000000000000000L + i, "emote" + i);
+                    emotes.add(emote);
+                    when(emojiManager.getMXCEmoji(emote)).thenReturn("mxc://example.com/emote" + i);
+                    raw.append("<:").append(emote.getName()).append(':').append(emote.getId()).append("> ");
+                }
+                break;
+        }
+
+        this.message = mock(Message.class, withSettings().stubOnly());
+        when(this.message.getContentRaw()).thenReturn(raw.toString());
+        when(this.message.getContentDisplay()).thenReturn(raw.toString());
+        when(this.message.getMentionedMembers()).thenReturn(members);
+        when(this.message.getMentionedRoles()).thenReturn(List.<Role>of());
+        when(this.message.getMentionedChannels()).thenReturn(List.<TextChannel>of());
+        when(this.message.getEmotes()).thenReturn(emotes);
+
+        this.formatter = new DiscordMessageFormatter(this.bridge);
+        this.parser = Parser.builder().build();
+        this.renderer = HtmlRenderer.builder().build();
+    }
+
+    private Member mockMember(long id, String name, String nickname) {
+        var user = mock(User.class, withSettings().stubOnly());
+        when(user.getIdLong()).thenReturn(id);
+        when(user.getId()).thenReturn(Long.toString(id));
+        when(user.getName()).thenReturn(name);
+        when(this.bridge.getUserIdForDiscordUser(user)).thenReturn("@!discord_" + id + ":example.com");
+
+        var member = mock(Member.class, withSettings().stubOnly());
+        when(member.getUser()).thenReturn(user);
+        when(member.getEffectiveName()).thenReturn(nickname);
+        return member;
+    }
+
+    private Emote mockEmote(long id, String name) {
+        var emote = mock(Emote.class, withSettings().stubOnly());
+        when(emote.getIdLong()).thenReturn(id);
+        when(emote.getId()).thenReturn(Long.toString(id));
+        when(emote.getName()).thenReturn(name);
+        return emote;
+    }
+
+    @Benchmark
+    public MessageContent singlePass() throws IOException {
+        return this.formatter.format(this.message);
+    }
+
+    @Benchmark
+    public MessageContent replaceAll() throws IOException {
+        return this.formatWithReplaceAll(this.message);
+    }
+
+    /**
+     * The formatting used before {@link DiscordMessageFormatter}, with a regex replacement
+     * for every mention and emote before and after rendering the markdown.
+     */
+    private MessageContent formatWithReplaceAll(Message message) throws IOException {
+        var inputText = message.getContentRaw();
+        var hasMentions = false;
+        var hasEmotes = false;
+
+        for(Member member : message.getMentionedMembers()) {
+            hasMentions = true;
+
+            inputText = inputText.replaceAll("<@!"+member.getUser().getId()+">", "@" + member.getEffectiveName());
+            inputText = inputText.replaceAll("<@"+member.getUser().getId()+">", "@" + member.getUser().getName());
+        }
+
+        for(Emote emote : message.getEmotes()) {
+            hasEmotes = true;
+            inputText = inputText.replaceAll("<:" + emote.getName() + ":" + emote.getId() + ">", ":" + emote.getName() + ":");
+        }
+
+        if(hasMentions || hasEmotes || message.getContentDisplay().contains("*") || message.getContentDisplay().contains("_") || message.getContentDisplay().contains("~")) {
+            var text = this.renderer.render(this.parser.parse(inputText));
+
+            var content = new MessageContent.FormattedTextMessageContent();
+            content.body = inputText;
+            content.format = MessageContent.FormattedTextMessageContent.FORMAT_TYPE_HTML;
+            content.formattedBody = text.trim().replaceAll("\n", "<br>");
+
+            for(Member member : message.getMentionedMembers()) {
+                var userId = this.bridge.getUserIdForDiscordUser(member.getUser());
+                content.formattedBody = content.formattedBody.replaceAll("@"+member.getEffectiveName(), "<a href=\"https://matrix.to/#/" + userId + "\">" + member.getEffectiveName() + "</a>");
+            }
+
+            for(Emote emote : message.getEmotes()) {
+                var mxcEmojiUrl = this.bridge.getEmojiManager().getMXCEmoji(emote);
+                content.formattedBody = content.formattedBody.replaceAll(":" + emote.getName() + ":", "<img src=\"" + mxcEmojiUrl + "\" alt=\":" + emote.getName() + ":\"/>");
+            }
+            return content;
+        } else {
+            var content = new MessageContent.TextMessageContent();
+            content.body = message.getContentDisplay();
+            return content;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DiscordMessageFormatterBenchmark.class.getSimpleName()).build()).run();
+    }
+}